@@ -0,0 +1,72 @@
+package com.joekeen03.yggdrasil.config;
+
+import com.joekeen03.yggdrasil.ModYggdrasil;
+import com.joekeen03.yggdrasil.util.IntegerAABBTree;
+import net.minecraftforge.common.config.Config;
+import net.minecraftforge.common.config.ConfigManager;
+import net.minecraftforge.fml.client.event.ConfigChangedEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+
+@Config(modid = ModYggdrasil.MODID)
+public class YggdrasilConfig {
+    @Config.Comment({"Approximate amount of memory, in megabytes, each world's cached mega-trees may use before the",
+            "least recently used ones are evicted. Evicted trees are rebuilt if they're needed again."})
+    @Config.RangeInt(min = 16)
+    public static int treeCacheBudgetMB = 1024;
+
+    @Config.Comment({"Save built mega-trees in the world's save folder, so they're loaded instead of regrown after a",
+            "restart."})
+    public static boolean persistTrees = true;
+
+    @Config.Comment({"Number of background threads per world which build mega-trees ahead of players, so world gen",
+            "doesn't have to stop and build them. 0 disables prebuilding. Only applies to worlds loaded afterwards."})
+    @Config.RangeInt(min = 0, max = 16)
+    public static int prebuildThreads = 1;
+
+    @Config.Comment("How many seconds ahead of each player's current movement trees are prebuilt for.")
+    @Config.RangeInt(min = 0, max = 300)
+    public static int prebuildLookaheadSeconds = 30;
+
+    @Config.Comment({"Build each mega-tree's branches, and its bounding volume hierarchy, in parallel, across all cores.",
+            "The trees are identical either way."})
+    public static boolean parallelTreeBuild = true;
+
+    @Config.Comment({"Branches at or past this level (the trunk is level 0) are only built once a cube near them is",
+            "generated, so parts of a mega-tree nobody visits cost next to nothing. Set it to the number of levels",
+            "or higher to build whole trees up front."})
+    @Config.RangeInt(min = 1)
+    public static int lazyBranchLevel = 2;
+
+    @Config.Comment({"How each mega-tree's bounding volume hierarchy splits its features. SAH (surface area heuristic)",
+            "makes for the fastest lookups during world gen; MEDIAN builds faster, and MIDPOINT is the old split.",
+            "Only applies to trees built afterwards."})
+    public static IntegerAABBTree.SplitStrategy bvhSplitStrategy = IntegerAABBTree.SplitStrategy.SAH;
+
+    @Config.Comment({"Draw the thinnest branches as every block their line passes through, rather than one block per",
+            "step along it, so they've no diagonal gaps. Makes them look a little thicker."})
+    public static boolean supercoverLeafBranches = false;
+
+    @Config.Comment({"Work out which features reach each cube of a mega-tree once, when the tree's built, so world gen",
+            "finds them with one lookup instead of searching the tree's bounding volume hierarchy. Costs several MB",
+            "per fully built tree, and some time building it; each build logs how much. Only applies to trees built",
+            "afterwards."})
+    public static boolean cubeFeatureIndex = false;
+
+    @Config.Comment({"Work out every block of a mega-tree once, when the tree's built, so world gen just copies",
+            "them into cubes only that tree reaches, instead of generating its features. Builds all of the tree's",
+            "lazy branches to do so, which can take a while; worth it when players will cover most of the trees.",
+            "With persistTrees, the baked blocks are stored alongside the tree. Only applies to trees built or loaded",
+            "afterwards."})
+    public static boolean bakeTrees = false;
+
+    @Mod.EventBusSubscriber(modid = ModYggdrasil.MODID)
+    private static class EventHandler {
+        @SubscribeEvent
+        public static void onConfigChanged(ConfigChangedEvent.OnConfigChangedEvent event) {
+            if (event.getModID().equals(ModYggdrasil.MODID)) {
+                ConfigManager.sync(ModYggdrasil.MODID, Config.Type.INSTANCE);
+            }
+        }
+    }
+}
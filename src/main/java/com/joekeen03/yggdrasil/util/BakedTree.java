@@ -0,0 +1,408 @@
+package com.joekeen03.yggdrasil.util;
+
+import com.joekeen03.yggdrasil.ModYggdrasil;
+import com.joekeen03.yggdrasil.config.YggdrasilConfig;
+import com.joekeen03.yggdrasil.world.structure.generationFeatures.CubeVoxelBuffer;
+import com.joekeen03.yggdrasil.world.structure.generationFeatures.GenerationFeature;
+import com.joekeen03.yggdrasil.world.structure.generationFeatures.LazyBranch;
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+import io.github.opencubicchunks.cubicchunks.api.world.ICube;
+import io.github.opencubicchunks.cubicchunks.api.worldgen.CubePrimer;
+import net.minecraft.block.Block;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.init.Blocks;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Every block a whole tree places, worked out once ahead of time, so generating a cube only it reaches is just copying
+ * the blocks out - no features, no geometry. For servers whose players will be all over the same trees.
+ * Each cube the tree places anything in is kept as a palette plus run-length encoded blocks, in the same order
+ * {@link CubeVoxelBuffer#resolve} goes through them (x, then y, then z). Each palette entry is a block state's id, and
+ * whether it replaces what's there (solid wood, or carved out air) or only goes where there's air (leaves and thin
+ * branches); the entry 0 (air, only where there's air) places nothing at all.
+ * Cube data layout: palette size, then each entry (varint); then runs of palette index (byte) and length (varint),
+ * until all of the cube's blocks are covered. Cubes are sorted by their packed coordinates, and found by binary search.
+ * Only what the tree places by itself is baked; cubes another tree also reaches still need both trees' features
+ * written to the same buffer, so baked trees keep their features.
+ */
+public class BakedTree {
+    private static final int BLOCKS_PER_CUBE = ICube.SIZE*ICube.SIZE*ICube.SIZE;
+    private static final int COORD_BITS = 21;
+    private static final long COORD_MASK = (1L << COORD_BITS)-1;
+    // Cubes each task bakes by itself, rather than splitting further.
+    private static final int BAKE_BATCH = 256;
+    private static final long OVERHEAD_BYTES = 64;
+
+    private static final LongAdder cubesPlaced = new LongAdder();
+
+    // Packed cube coordinates, sorted; cube i's data is data[offsets[i]] to data[offsets[i+1]-1].
+    private final long[] keys;
+    private final int[] offsets;
+    private final byte[] data;
+
+    public BakedTree(@Nonnull long[] keys, @Nonnull int[] offsets, @Nonnull byte[] data) {
+        if (offsets.length != keys.length+1 || offsets[0] != 0 || offsets[keys.length] != data.length) {
+            throw new InvalidValueException("BakedTree's offsets don't match its cubes and data.");
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (offsets[i+1] < offsets[i]) {
+                throw new InvalidValueException("BakedTree's offsets aren't in order.");
+            }
+        }
+        this.keys = keys;
+        this.offsets = offsets;
+        this.data = data;
+    }
+
+    /**
+     * Works out every block the tree places, building all of its lazy branches to do so; they're dropped again after.
+     * The cubes are baked in parallel if {@link YggdrasilConfig#parallelTreeBuild} is set.
+     * @param tree
+     * @return
+     */
+    public static BakedTree bake(@Nonnull IntegerAABBTree tree) {
+        long startTime = System.nanoTime();
+        ArrayList<LazyBranch> lazyBranches = new ArrayList<>();
+        long[] cubeKeys = collectCubes(tree, lazyBranches);
+        byte[][] cubeData = new byte[cubeKeys.length][];
+        BakeTask task = new BakeTask(tree, cubeKeys, cubeData, 0, cubeKeys.length);
+        if (YggdrasilConfig.parallelTreeBuild) {
+            ForkJoinPool.commonPool().invoke(task);
+        } else {
+            task.compute();
+        }
+        for (LazyBranch lazyBranch : lazyBranches) {
+            lazyBranch.releaseMaterialized();
+        }
+        // Leave out the cubes which turned out to be empty.
+        int cubeCount = 0;
+        int dataLength = 0;
+        for (int i = 0; i < cubeKeys.length; i++) {
+            if (cubeData[i] != null) {
+                cubeKeys[cubeCount] = cubeKeys[i];
+                cubeData[cubeCount] = cubeData[i];
+                dataLength += cubeData[i].length;
+                cubeCount++;
+            }
+        }
+        long[] keys = Arrays.copyOf(cubeKeys, cubeCount);
+        int[] offsets = new int[cubeCount+1];
+        byte[] data = new byte[dataLength];
+        for (int i = 0; i < cubeCount; i++) {
+            System.arraycopy(cubeData[i], 0, data, offsets[i], cubeData[i].length);
+            offsets[i+1] = offsets[i]+cubeData[i].length;
+        }
+        BakedTree baked = new BakedTree(keys, offsets, data);
+        ModYggdrasil.info("Baked "+cubeCount+" cubes (~"+(baked.estimateRetainedBytes()/1024)+"KB) in "
+                +(System.nanoTime()-startTime)/1000000+"ms.");
+        return baked;
+    }
+
+    /**
+     * Every cube any of the tree's features, or any of its lazy branches' features once they're built, might place
+     * anything in; sorted, without duplicates.
+     */
+    private static long[] collectCubes(IntegerAABBTree tree, ArrayList<LazyBranch> lazyBranches) {
+        long[] cubeKeys = new long[1024];
+        int count = 0;
+        ArrayList<IntegerAABBTree> pending = new ArrayList<>();
+        pending.add(tree);
+        while (!pending.isEmpty()) {
+            IntegerAABBTree next = pending.remove(pending.size()-1);
+            for (int i = 0; i < next.getFeatureCount(); i++) {
+                GenerationFeature feature = next.getFeature(i);
+                if (feature instanceof LazyBranch) {
+                    // Its own box is just a sphere around wherever it might reach; its features know exactly.
+                    lazyBranches.add((LazyBranch) feature);
+                    pending.add(((LazyBranch) feature).getMaterialized());
+                    continue;
+                }
+                IntegerMinimumAABB box = feature.getMinimumBoundingBox();
+                for (int x = box.minX; x <= box.maxX; x++) {
+                    for (int y = box.minY; y <= box.maxY; y++) {
+                        for (int z = box.minZ; z <= box.maxZ; z++) {
+                            if (feature.classifyCube(new CubePos(x, y, z)) == GenerationFeature.CubeCoverage.OUTSIDE) {
+                                continue;
+                            }
+                            if (count == cubeKeys.length) {
+                                cubeKeys = Arrays.copyOf(cubeKeys, count*2);
+                            }
+                            cubeKeys[count++] = pack(x, y, z);
+                        }
+                    }
+                }
+            }
+        }
+        Arrays.sort(cubeKeys, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || cubeKeys[i] != cubeKeys[unique-1]) {
+                cubeKeys[unique++] = cubeKeys[i];
+            }
+        }
+        return Arrays.copyOf(cubeKeys, unique);
+    }
+
+    private static long pack(int x, int y, int z) {
+        return ((x & COORD_MASK) << (2*COORD_BITS)) | ((y & COORD_MASK) << COORD_BITS) | (z & COORD_MASK);
+    }
+
+    private static CubePos unpack(long key) {
+        // Shifted up to the top of the long then back down, to sign extend each coordinate.
+        return new CubePos((int) (key << (64-3*COORD_BITS) >> (64-COORD_BITS)),
+                (int) (key << (64-2*COORD_BITS) >> (64-COORD_BITS)),
+                (int) (key << (64-COORD_BITS) >> (64-COORD_BITS)));
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Reads a varint starting at data[position[0]], and moves position[0] past it.
+     */
+    private static int readVarInt(byte[] data, int[] position) {
+        int value = 0;
+        int shift = 0;
+        byte next;
+        do {
+            next = data[position[0]++];
+            value |= (next & 0x7F) << shift;
+            shift += 7;
+        } while ((next & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Places the tree's baked blocks for the cube, exactly as resolving the tree's features for it would have.
+     * @param pos
+     * @param cubePrimer
+     * @return Whether the tree places anything in the cube.
+     */
+    public boolean place(CubePos pos, CubePrimer cubePrimer) {
+        int cube = Arrays.binarySearch(keys, pack(pos.getX(), pos.getY(), pos.getZ()));
+        if (cube < 0) {
+            return false;
+        }
+        int[] position = new int[] {offsets[cube]};
+        IBlockState air = Blocks.AIR.getDefaultState();
+        int paletteSize = readVarInt(data, position);
+        IBlockState[] states = new IBlockState[paletteSize];
+        boolean[] replaces = new boolean[paletteSize];
+        for (int i = 0; i < paletteSize; i++) {
+            int entry = readVarInt(data, position);
+            states[i] = (entry == 0) ? null : Block.getStateById(entry >>> 1);
+            replaces[i] = (entry & 1) != 0;
+        }
+        int block = 0;
+        while (block < BLOCKS_PER_CUBE) {
+            int index = data[position[0]++] & 0xFF;
+            int runEnd = block+readVarInt(data, position);
+            IBlockState state = states[index];
+            if (state == null) {
+                block = runEnd;
+                continue;
+            }
+            for (; block < runEnd; block++) {
+                int x = block >> 8;
+                int y = (block >> 4) & 0xF;
+                int z = block & 0xF;
+                if (replaces[index] || (cubePrimer.getBlockState(x, y, z) == air)) {
+                    cubePrimer.setBlockState(x, y, z, state);
+                }
+            }
+        }
+        cubesPlaced.increment();
+        return true;
+    }
+
+    public int getCubeCount() {
+        return keys.length;
+    }
+
+    public long estimateRetainedBytes() {
+        return 3*OVERHEAD_BYTES + 8L*keys.length + 4L*offsets.length + data.length;
+    }
+
+    /**
+     * Writes the baked cubes; {@link #read} reads them back.
+     * @param out
+     * @throws IOException
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(keys.length);
+        for (long key : keys) {
+            out.writeLong(key);
+        }
+        for (int offset : offsets) {
+            out.writeInt(offset);
+        }
+        out.write(data);
+    }
+
+    public static BakedTree read(ByteBuffer in) {
+        // Each cube's key, and its offset.
+        long[] keys = new long[Helpers.readLength(in, 12)];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = in.getLong();
+        }
+        int[] offsets = new int[keys.length+1];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = in.getInt();
+        }
+        if (offsets[keys.length] < 0 || offsets[keys.length] > in.remaining()) {
+            throw new InvalidValueException("Stored baked tree's data doesn't fit in the "+in.remaining()
+                    +" bytes left.");
+        }
+        byte[] data = new byte[offsets[keys.length]];
+        in.get(data);
+        return new BakedTree(keys, offsets, data);
+    }
+
+    /**
+     * How many cubes have been placed from baked trees so far, across every tree.
+     * @return
+     */
+    public static String getStats() {
+        return "Cubes placed from baked trees: "+cubesPlaced.sum();
+    }
+
+    private static class BakeTask extends RecursiveAction {
+        private final IntegerAABBTree tree;
+        private final long[] cubeKeys;
+        private final byte[][] cubeData;
+        private final int start, stop;
+        // Only set for the task actually baking cubes, rather than splitting them up.
+        private CubeVoxelBuffer buffer;
+        private GenerationFeature[] found;
+        private ByteArrayOutputStream out;
+
+        BakeTask(IntegerAABBTree tree, long[] cubeKeys, byte[][] cubeData, int start, int stop) {
+            this.tree = tree;
+            this.cubeKeys = cubeKeys;
+            this.cubeData = cubeData;
+            this.start = start;
+            this.stop = stop;
+        }
+
+        @Override
+        protected void compute() {
+            if (stop-start > BAKE_BATCH && inForkJoinPool()) {
+                int middle = (start+stop) >>> 1;
+                invokeAll(new BakeTask(tree, cubeKeys, cubeData, start, middle),
+                        new BakeTask(tree, cubeKeys, cubeData, middle, stop));
+                return;
+            }
+            buffer = new CubeVoxelBuffer();
+            found = new GenerationFeature[64];
+            out = new ByteArrayOutputStream();
+            // Cubes next to each other in the sorted keys share their x and y, so each such run's features are found
+            //  with one walk down the tree.
+            int i = start;
+            while (i < stop) {
+                int runStop = i+1;
+                while ((runStop < stop) && ((cubeKeys[runStop] >>> COORD_BITS) == (cubeKeys[i] >>> COORD_BITS))) {
+                    runStop++;
+                }
+                // Sorted by their unsigned z, so the lowest z isn't necessarily first.
+                CubePos first = unpack(cubeKeys[i]);
+                int minZ = first.getZ(), maxZ = first.getZ();
+                for (int j = i+1; j < runStop; j++) {
+                    int z = unpack(cubeKeys[j]).getZ();
+                    minZ = Math.min(minZ, z);
+                    maxZ = Math.max(maxZ, z);
+                }
+                IntegerAABBTree.BoxQuery run = tree.queryBox(new IntegerAABB(first.getX(), first.getY(), minZ,
+                        first.getX(), first.getY(), maxZ));
+                for (; i < runStop; i++) {
+                    cubeData[i] = bakeCube(run, unpack(cubeKeys[i]));
+                }
+            }
+        }
+
+        /**
+         * Writes the tree's features for the cube, as found by the run's query, into the buffer, and encodes what
+         * resolving it would place.
+         * @return The cube's data, or null if it places nothing.
+         */
+        private byte[] bakeCube(IntegerAABBTree.BoxQuery run, CubePos pos) {
+            buffer.reset(pos);
+            int foundCount = run.query(pos, found);
+            if (foundCount > found.length) {
+                found = new GenerationFeature[Integer.highestOneBit(foundCount)*2];
+                run.query(pos, found);
+            }
+            for (int i = 0; i < foundCount; i++) {
+                found[i].generate(buffer, pos);
+            }
+            Arrays.fill(found, 0, foundCount, null);
+            if (buffer.isEmpty()) {
+                return null;
+            }
+            // Resolved into an empty cube, so everything the buffer places shows up.
+            CubePrimer primer = new CubePrimer();
+            buffer.resolve(primer);
+            IBlockState air = Blocks.AIR.getDefaultState();
+            int[] palette = new int[8];
+            // Entry 0 is always nothing; air's state id is 0. A tree only uses a handful of states, so its palette
+            //  indices always fit in a byte.
+            int paletteSize = 1;
+            byte[] blocks = new byte[BLOCKS_PER_CUBE];
+            int block = 0;
+            boolean placesAnything = false;
+            for (int x = 0; x < ICube.SIZE; x++) {
+                for (int y = 0; y < ICube.SIZE; y++) {
+                    for (int z = 0; z < ICube.SIZE; z++) {
+                        boolean replace = buffer.replaces(x, y, z);
+                        IBlockState state = primer.getBlockState(x, y, z);
+                        int entry = (replace || state != air)
+                                ? ((Block.getStateId(state) << 1) | (replace ? 1 : 0)) : 0;
+                        int index = 0;
+                        while (index < paletteSize && palette[index] != entry) {
+                            index++;
+                        }
+                        if (index == paletteSize) {
+                            if (paletteSize == palette.length) {
+                                palette = Arrays.copyOf(palette, paletteSize*2);
+                            }
+                            palette[paletteSize++] = entry;
+                        }
+                        blocks[block++] = (byte) index;
+                        placesAnything |= (entry != 0);
+                    }
+                }
+            }
+            if (!placesAnything) {
+                return null;
+            }
+            out.reset();
+            writeVarInt(out, paletteSize);
+            for (int i = 0; i < paletteSize; i++) {
+                writeVarInt(out, palette[i]);
+            }
+            int runStart = 0;
+            for (int i = 1; i <= BLOCKS_PER_CUBE; i++) {
+                if (i == BLOCKS_PER_CUBE || blocks[i] != blocks[runStart]) {
+                    out.write(blocks[runStart]);
+                    writeVarInt(out, i-runStart);
+                    runStart = i;
+                }
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.joekeen03.yggdrasil.util;
+
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+import net.minecraft.util.math.Vec3d;
+
+/**
+ * Every point within radius of the segment from start to end, in block coordinates. Much tighter than an axis-aligned
+ * box around a long diagonal branch, and still cheap to check against a cube.
+ */
+public class BoundingCapsule {
+    public final Vec3d start, end;
+    public final double radius;
+
+    public BoundingCapsule(Vec3d start, Vec3d end, double radius) {
+        if (Helpers.hasNaN(start) || Helpers.hasNaN(end) || Double.isNaN(radius)) {
+            throw new InvalidValueException("BoundingCapsule received NaNs.");
+        }
+        this.start = start;
+        this.end = end;
+        this.radius = radius;
+    }
+
+    /**
+     * Conservatively checks if the capsule reaches the cube's generation buffer (the cube, plus a block on each
+     * side), by treating the buffer as the sphere around it.
+     * @param pos
+     * @return
+     */
+    public boolean reachesCube(CubePos pos) {
+        return reachesPoint(start.x, start.y, start.z, end.x-start.x, end.y-start.y, end.z-start.z,
+                radius+Constants.cubeBufferRadius, pos.getXCenter(), pos.getYCenter(), pos.getZCenter());
+    }
+
+    /**
+     * Checks if the point's within reach of the segment from start to start+axis.
+     */
+    public static boolean reachesPoint(double startX, double startY, double startZ, double axisX, double axisY,
+                                       double axisZ, double reach, double x, double y, double z) {
+        double dx = x-startX;
+        double dy = y-startY;
+        double dz = z-startZ;
+        double axisLength2 = axisX*axisX+axisY*axisY+axisZ*axisZ;
+        // How far along the segment the closest point to it is, from 0 (start) to 1 (end).
+        double along = (axisLength2 == 0) ? 0
+                : Math.min(Math.max((dx*axisX+dy*axisY+dz*axisZ)/axisLength2, 0), 1);
+        dx -= along*axisX;
+        dy -= along*axisY;
+        dz -= along*axisZ;
+        return dx*dx+dy*dy+dz*dz <= reach*reach;
+    }
+}
@@ -4,5 +4,7 @@ import io.github.opencubicchunks.cubicchunks.api.world.ICube;
 
 public class Constants {
     public static final double cubeHalfDiagonal = Math.sqrt(3)* ICube.SIZE/2;
+    // Distance from a cube's center to its generation buffer's corners; the buffer's a block bigger on every side.
+    public static final double cubeBufferRadius = Math.sqrt(3)*(ICube.SIZE/2+1);
     public static final boolean DEBUG = false;
 }
@@ -0,0 +1,156 @@
+package com.joekeen03.yggdrasil.util;
+
+import com.joekeen03.yggdrasil.ModYggdrasil;
+import com.joekeen03.yggdrasil.world.structure.generationFeatures.GenerationFeature;
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+import it.unimi.dsi.fastutil.Hash;
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Every feature of a tree which reaches each cube, worked out once for every cube, so finding a cube's features is one
+ * hash lookup instead of a walk down the tree's IntegerAABBTree, checking each leaf's box, capsule and feature on the
+ * way. Which cubes a feature reaches is exactly what its own {@link GenerationFeature#classifyCube} says, for every
+ * cube in its bounding box.
+ * Trades memory for time: a tree's cones reach a few million cubes between them, each an entry here. So it's only
+ * built for trees when {@link com.joekeen03.yggdrasil.config.YggdrasilConfig#cubeFeatureIndex} is set, and each build
+ * logs how big it came out. Features whose boxes are huge (lazy branches, whose spheres can cover millions of cubes)
+ * aren't indexed at all; they're left in a small IntegerAABBTree of their own, which each lookup queries too.
+ * Packed cube coordinates map to the cube's number, in a primitive fastutil map; each cube's features are a run of one
+ * shared array, like a CSR matrix's rows, so there's no array or boxed value per cube.
+ */
+public class CubeFeatureIndex {
+    // Features whose boxes cover more cubes than this go in the fallback tree instead.
+    private static final long MAX_INDEXED_CUBES = 1 << 15;
+    private static final int NO_CUBE = -1;
+    private static final int COORD_BITS = 21;
+    private static final long COORD_MASK = (1L << COORD_BITS)-1;
+    private static final long OVERHEAD_BYTES = 64;
+
+    private static final LongAdder lookups = new LongAdder();
+    private static final LongAdder featuresFound = new LongAdder();
+
+    private final Long2IntOpenHashMap cubes;
+    // Cube i's features are entries[starts[i]] to entries[starts[i+1]-1].
+    private final int[] starts;
+    private final GenerationFeature[] entries;
+    private final IntegerAABBTree unindexed;
+
+    /**
+     * Works out which features reach each cube. Can take a while for big trees.
+     * @param tree
+     */
+    public CubeFeatureIndex(@Nonnull IntegerAABBTree tree) {
+        long startTime = System.nanoTime();
+        // Every (cube, feature) pair, in the order they're found; cubes are numbered in the order they're first found.
+        int[] pairCubes = new int[1024];
+        int[] pairFeatures = new int[1024];
+        int pairCount = 0;
+        cubes = new Long2IntOpenHashMap();
+        cubes.defaultReturnValue(NO_CUBE);
+        ArrayList<GenerationFeature> large = new ArrayList<>();
+        for (int i = 0; i < tree.getFeatureCount(); i++) {
+            GenerationFeature feature = tree.getFeature(i);
+            IntegerMinimumAABB box = feature.getMinimumBoundingBox();
+            if ((long) box.lengthX*box.lengthY*box.lengthZ > MAX_INDEXED_CUBES) {
+                large.add(feature);
+                continue;
+            }
+            for (int x = box.minX; x <= box.maxX; x++) {
+                for (int y = box.minY; y <= box.maxY; y++) {
+                    for (int z = box.minZ; z <= box.maxZ; z++) {
+                        if (feature.classifyCube(new CubePos(x, y, z)) == GenerationFeature.CubeCoverage.OUTSIDE) {
+                            continue;
+                        }
+                        long key = pack(x, y, z);
+                        int cube = cubes.get(key);
+                        if (cube == NO_CUBE) {
+                            cube = cubes.size();
+                            cubes.put(key, cube);
+                        }
+                        if (pairCount == pairCubes.length) {
+                            pairCubes = Arrays.copyOf(pairCubes, pairCount*2);
+                            pairFeatures = Arrays.copyOf(pairFeatures, pairCount*2);
+                        }
+                        pairCubes[pairCount] = cube;
+                        pairFeatures[pairCount] = i;
+                        pairCount++;
+                    }
+                }
+            }
+        }
+        cubes.trim();
+        // Count each cube's features, turn the counts into where each cube's run starts, then fill the runs; each
+        //  cube's features stay in the tree's order.
+        starts = new int[cubes.size()+1];
+        for (int i = 0; i < pairCount; i++) {
+            starts[pairCubes[i]+1]++;
+        }
+        for (int i = 0; i < cubes.size(); i++) {
+            starts[i+1] += starts[i];
+        }
+        entries = new GenerationFeature[pairCount];
+        int[] filled = Arrays.copyOf(starts, cubes.size());
+        for (int i = 0; i < pairCount; i++) {
+            entries[filled[pairCubes[i]]++] = tree.getFeature(pairFeatures[i]);
+        }
+        unindexed = large.isEmpty() ? null : new IntegerAABBTree(large.toArray(new GenerationFeature[0]));
+        ModYggdrasil.info("Indexed "+(tree.getFeatureCount()-large.size())+" features across "+cubes.size()
+                +" cubes ("+pairCount+" entries, ~"+(estimateRetainedBytes()/1024)+"KB) in "
+                +(System.nanoTime()-startTime)/1000000+"ms; "+large.size()+" features too big to index.");
+    }
+
+    private static long pack(int x, int y, int z) {
+        return ((x & COORD_MASK) << (2*COORD_BITS)) | ((y & COORD_MASK) << COORD_BITS) | (z & COORD_MASK);
+    }
+
+    /**
+     * Finds every feature which reaches the specified cube, with the same contract as
+     * {@link IntegerAABBTree#query(CubePos, GenerationFeature[])}.
+     * @param pos
+     * @param results
+     * @return
+     */
+    public int query(CubePos pos, GenerationFeature[] results) {
+        int found = (unindexed != null) ? unindexed.query(pos, results) : 0;
+        int cube = cubes.get(pack(pos.getX(), pos.getY(), pos.getZ()));
+        if (cube != NO_CUBE) {
+            for (int i = starts[cube]; i < starts[cube+1]; i++) {
+                if (found < results.length) {
+                    results[found] = entries[i];
+                }
+                found++;
+            }
+        }
+        lookups.increment();
+        featuresFound.add(found);
+        return found;
+    }
+
+    public int getCubeCount() {
+        return cubes.size();
+    }
+
+    public long estimateRetainedBytes() {
+        // The map's keys and values, at its default load factor.
+        long mapBytes = 12L*HashCommon.arraySize(Math.max(cubes.size(), 1), Hash.DEFAULT_LOAD_FACTOR);
+        return 4*OVERHEAD_BYTES + mapBytes + 4L*starts.length + 4L*entries.length
+                // Not the unindexed tree's features themselves; the tree this indexes already counts them.
+                + ((unindexed != null) ? 4L*unindexed.getNodeData().length+8L*unindexed.getFeatureCount() : 0);
+    }
+
+    /**
+     * Summarizes the lookups made across every index so far.
+     * @return
+     */
+    public static String getLookupStats() {
+        long lookupCount = lookups.sum();
+        double average = (lookupCount == 0) ? 0 : (double) featuresFound.sum()/lookupCount;
+        return "Cube index lookups: "+lookupCount+", average features found: "+String.format("%.2f", average);
+    }
+}
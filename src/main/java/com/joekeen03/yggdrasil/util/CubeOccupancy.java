@@ -0,0 +1,253 @@
+package com.joekeen03.yggdrasil.util;
+
+import com.joekeen03.yggdrasil.world.structure.generationFeatures.CubeVoxelBuffer;
+import com.joekeen03.yggdrasil.world.structure.generationFeatures.GenerationFeature;
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What a whole tree does to each cube, at cube resolution, so cubes in the open air between its branches, or deep
+ * within its trunk, never need the tree's IntegerAABBTree queried, or any of its features written.
+ * Each cube is EMPTY (none of the tree's features write anything to its buffer), solid (some feature fills its whole
+ * buffer - see {@link GenerationFeature.CubeCoverage#INSIDE} - and nothing else touching it could change that; see
+ * {@link GenerationFeature#mayOverrideSolid}), in which case its state is the wood it's filled with, or PARTIAL.
+ * Worked out from each feature's own {@link GenerationFeature#classifyCube}, so it's exact for as far as the features
+ * themselves know.
+ * Kept as a two level pyramid, since most of a tree's envelope is either air or trunk: the tree's bounds are split into
+ * regions of REGION_SIZE cubes along each axis, a region whose cubes are all in the same state just shares that
+ * state's array, and only the rest keep a byte per cube of their own. Everything outside the bounds is EMPTY.
+ * Each region is worked out the first time one of its cubes is looked up, from every feature whose box overlaps it -
+ * a lazy branch's box can cover millions of cubes, nearly all of which are never generated. Threads racing to work out
+ * the same region just both do it; they come up with the same thing.
+ */
+public class CubeOccupancy {
+    public static final byte EMPTY = 0;
+    public static final byte PARTIAL = 1;
+    private static final int REGION_BITS = 3;
+    private static final int REGION_SIZE = 1 << REGION_BITS;
+    private static final int REGION_MASK = REGION_SIZE-1;
+    private static final int REGION_VOLUME = REGION_SIZE*REGION_SIZE*REGION_SIZE;
+    private static final long OVERHEAD_BYTES = 64;
+    // Shared by every region whose cubes are all in the same state; indexed by that state.
+    private static final byte[][] UNIFORM_REGIONS = new byte[CubeVoxelBuffer.WOOD_Z+1][];
+
+    // What's gathered for each cube while working out its region, before it's boiled down to a state: whether
+    //  anything touches it, which woods some feature fills it with, and which woods some feature touching it might
+    //  override.
+    private static final int TOUCHED = 1;
+    private static final int FILLED_SHIFT = 1;
+    private static final int OVERRIDDEN_SHIFT = 4;
+    private static final byte[] WOODS_BY_PRIORITY = new byte[] {CubeVoxelBuffer.WOOD_Y, CubeVoxelBuffer.WOOD_X,
+            CubeVoxelBuffer.WOOD_Z};
+
+    private static final LongAdder lookups = new LongAdder();
+    private static final LongAdder emptyLookups = new LongAdder();
+    private static final LongAdder solidLookups = new LongAdder();
+    private static final LongAdder regionsBuilt = new LongAdder();
+
+    static {
+        for (byte state = 0; state < UNIFORM_REGIONS.length; state++) {
+            UNIFORM_REGIONS[state] = new byte[REGION_VOLUME];
+            Arrays.fill(UNIFORM_REGIONS[state], state);
+        }
+    }
+
+    private final IntegerAABBTree tree;
+    private final int minX, minY, minZ;
+    private final int regionsX, regionsY, regionsZ;
+    // x major, then y, then z; null until worked out.
+    private final AtomicReferenceArray<byte[]> regions;
+    private final LongAdder mixedRegions = new LongAdder();
+
+    /**
+     * Covers everything within the tree's current bounds; doesn't work anything out yet.
+     * @param tree
+     */
+    public CubeOccupancy(@Nonnull IntegerAABBTree tree) {
+        this.tree = tree;
+        IntegerAABB bounds = tree.getBounds();
+        if (bounds == null) {
+            minX = minY = minZ = 0;
+            regionsX = regionsY = regionsZ = 0;
+        } else {
+            minX = bounds.minX;
+            minY = bounds.minY;
+            minZ = bounds.minZ;
+            regionsX = ((bounds.maxX-minX) >> REGION_BITS)+1;
+            regionsY = ((bounds.maxY-minY) >> REGION_BITS)+1;
+            regionsZ = ((bounds.maxZ-minZ) >> REGION_BITS)+1;
+        }
+        regions = new AtomicReferenceArray<>(regionsX*regionsY*regionsZ);
+    }
+
+    /**
+     * The cube's state: EMPTY, PARTIAL, or the wood (see {@link CubeVoxelBuffer#WOOD_X}) its whole buffer is filled
+     * with.
+     * @param pos
+     * @return
+     */
+    public byte get(CubePos pos) {
+        lookups.increment();
+        byte state = get(pos.getX(), pos.getY(), pos.getZ());
+        if (state == EMPTY) {
+            emptyLookups.increment();
+        } else if (state != PARTIAL) {
+            solidLookups.increment();
+        }
+        return state;
+    }
+
+    private byte get(int cubeX, int cubeY, int cubeZ) {
+        int x = cubeX-minX, y = cubeY-minY, z = cubeZ-minZ;
+        int regionX = x >> REGION_BITS, regionY = y >> REGION_BITS, regionZ = z >> REGION_BITS;
+        if (x < 0 || y < 0 || z < 0 || regionX >= regionsX || regionY >= regionsY || regionZ >= regionsZ) {
+            return EMPTY;
+        }
+        int region = (regionX*regionsY+regionY)*regionsZ+regionZ;
+        byte[] cubes = regions.get(region);
+        if (cubes == null) {
+            cubes = buildRegion(regionX, regionY, regionZ);
+            if (regions.compareAndSet(region, null, cubes)) {
+                regionsBuilt.increment();
+                if (!isUniform(cubes)) {
+                    mixedRegions.increment();
+                }
+            } else {
+                cubes = regions.get(region);
+            }
+        }
+        return cubes[cubeIndex(x, y, z)];
+    }
+
+    private static int cubeIndex(int x, int y, int z) {
+        return ((((x & REGION_MASK) << REGION_BITS) | (y & REGION_MASK)) << REGION_BITS) | (z & REGION_MASK);
+    }
+
+    /**
+     * Works out the state of every cube in the region, from each feature whose box overlaps it.
+     * @return The states, or the shared array for their state if they're all the same.
+     */
+    private byte[] buildRegion(int regionX, int regionY, int regionZ) {
+        int regionMinX = minX+(regionX << REGION_BITS);
+        int regionMinY = minY+(regionY << REGION_BITS);
+        int regionMinZ = minZ+(regionZ << REGION_BITS);
+        IntegerAABB regionBox = new IntegerAABB(regionMinX, regionMinY, regionMinZ, regionMinX+REGION_MASK,
+                regionMinY+REGION_MASK, regionMinZ+REGION_MASK);
+        byte[] flags = new byte[REGION_VOLUME];
+        tree.forEachOverlapping(regionBox, feature -> {
+            IntegerMinimumAABB box = feature.getMinimumBoundingBox();
+            int overridden = 0;
+            for (byte wood = CubeVoxelBuffer.WOOD_X; wood <= CubeVoxelBuffer.WOOD_Z; wood++) {
+                if (feature.mayOverrideSolid(wood)) {
+                    overridden |= 1 << (OVERRIDDEN_SHIFT+wood-CubeVoxelBuffer.WOOD_X);
+                }
+            }
+            int fromX = Math.max(box.minX, regionBox.minX), toX = Math.min(box.maxX, regionBox.maxX);
+            int fromY = Math.max(box.minY, regionBox.minY), toY = Math.min(box.maxY, regionBox.maxY);
+            int fromZ = Math.max(box.minZ, regionBox.minZ), toZ = Math.min(box.maxZ, regionBox.maxZ);
+            // A feature which never fills a cube can't add anything to cubes other features already make PARTIAL the
+            //  same way, which saves asking it about every cube where big lazy branches' spheres overlap.
+            if ((feature.getSolidWood() == CubeVoxelBuffer.NONE)
+                    && allFlagged(flags, fromX-minX, fromY-minY, fromZ-minZ, toX-minX, toY-minY, toZ-minZ,
+                    TOUCHED | overridden)) {
+                return;
+            }
+            int filled = 0;
+            for (int x = fromX; x <= toX; x++) {
+                for (int y = fromY; y <= toY; y++) {
+                    for (int z = fromZ; z <= toZ; z++) {
+                        GenerationFeature.CubeCoverage coverage = feature.classifyCube(new CubePos(x, y, z));
+                        if (coverage == GenerationFeature.CubeCoverage.OUTSIDE) {
+                            continue;
+                        }
+                        int cubeFlags = TOUCHED | overridden;
+                        if (coverage == GenerationFeature.CubeCoverage.INSIDE) {
+                            if (filled == 0) {
+                                filled = 1 << (FILLED_SHIFT+feature.getSolidWood()-CubeVoxelBuffer.WOOD_X);
+                            }
+                            cubeFlags |= filled;
+                        }
+                        flags[cubeIndex(x-minX, y-minY, z-minZ)] |= cubeFlags;
+                    }
+                }
+            }
+        });
+        // Boil each cube's flags down to its state.
+        for (int i = 0; i < REGION_VOLUME; i++) {
+            flags[i] = stateFor(flags[i]);
+        }
+        for (int i = 1; i < REGION_VOLUME; i++) {
+            if (flags[i] != flags[0]) {
+                return flags;
+            }
+        }
+        return UNIFORM_REGIONS[flags[0]];
+    }
+
+    /**
+     * Whether every cube within the bounds (relative to the occupancy's min corner, inclusive) already has all the
+     * specified flags.
+     */
+    private static boolean allFlagged(byte[] flags, int fromX, int fromY, int fromZ, int toX, int toY, int toZ,
+                                      int required) {
+        for (int x = fromX; x <= toX; x++) {
+            for (int y = fromY; y <= toY; y++) {
+                for (int z = fromZ; z <= toZ; z++) {
+                    if ((flags[cubeIndex(x, y, z)] & required) != required) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The state for a cube, from the flags gathered for it.
+     */
+    private static byte stateFor(int flags) {
+        if ((flags & TOUCHED) == 0) {
+            return EMPTY;
+        }
+        // Only the filling wood with the highest priority can be what the cube ends up as; every other feature filling
+        //  the cube overrides anything lower than its own wood anyway.
+        for (byte wood : WOODS_BY_PRIORITY) {
+            if ((flags & (1 << (FILLED_SHIFT+wood-CubeVoxelBuffer.WOOD_X))) != 0) {
+                return ((flags & (1 << (OVERRIDDEN_SHIFT+wood-CubeVoxelBuffer.WOOD_X))) != 0) ? PARTIAL : wood;
+            }
+        }
+        return PARTIAL;
+    }
+
+    private static boolean isUniform(byte[] cubes) {
+        return cubes == UNIFORM_REGIONS[cubes[0]];
+    }
+
+    /**
+     * Rough estimate of the memory this keeps alive, which grows as more of its regions are worked out.
+     * @return
+     */
+    public long estimateRetainedBytes() {
+        return 2*OVERHEAD_BYTES + 4L*regions.length() + mixedRegions.sum()*(REGION_VOLUME+16L);
+    }
+
+    /**
+     * Summarizes the lookups made across every tree so far: how many, how many of them found the cube empty or solid,
+     * i.e. didn't have to query the tree or write any of its features, and how many regions had to be worked out.
+     * @return
+     */
+    public static String getLookupStats() {
+        long lookupCount = lookups.sum();
+        long empty = emptyLookups.sum();
+        long solid = solidLookups.sum();
+        double emptyPercent = (lookupCount == 0) ? 0 : 100.0*empty/lookupCount;
+        double solidPercent = (lookupCount == 0) ? 0 : 100.0*solid/lookupCount;
+        return "Occupancy lookups: "+lookupCount+", empty: "+empty+String.format(" (%.1f%%)", emptyPercent)
+                +", solid: "+solid+String.format(" (%.1f%%)", solidPercent)+", regions worked out: "
+                +regionsBuilt.sum();
+    }
+}
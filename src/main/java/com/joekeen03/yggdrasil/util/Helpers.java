@@ -2,10 +2,16 @@ package com.joekeen03.yggdrasil.util;
 
 import com.joekeen03.yggdrasil.ModYggdrasil;
 import com.joekeen03.yggdrasil.world.structure.generationFeatures.GenerationFeature;
+import io.github.opencubicchunks.cubicchunks.api.util.Coords;
 import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+import io.github.opencubicchunks.cubicchunks.api.world.ICube;
 import net.minecraft.util.math.Vec3d;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Random;
+import java.util.function.Predicate;
 import java.util.function.ToDoubleFunction;
 import java.util.function.ToIntFunction;
 
@@ -93,6 +99,76 @@ public class Helpers {
         return highIndex;
     }
 
+    /**
+     * Partitions the specified subsection of the array, such that the elements for which isLow returns true are all
+     * before the elements for which it returns false.
+     * @param arr
+     * @param sectionStart
+     * @param sectionStop
+     * @param isLow
+     * @param <T>
+     * @return The start index of the high half of the array.
+     */
+    public static <T> int arraySectionPartition(T[] arr, int sectionStart, int sectionStop, Predicate<T> isLow) {
+        int lowIndex = sectionStart;
+        int highIndex = sectionStop-1;
+        while (lowIndex <= highIndex) {
+            if (isLow.test(arr[lowIndex])) {
+                lowIndex++;
+            } else {
+                T swap = arr[highIndex];
+                arr[highIndex] = arr[lowIndex];
+                arr[lowIndex] = swap;
+                highIndex--;
+            }
+        }
+        return lowIndex;
+    }
+
+    /**
+     * Rearranges the specified subsection of the array such that the element at index k is the one that would be there
+     * if the subsection was sorted, with no larger elements before it and no smaller elements after it (quickselect).
+     * @param arr
+     * @param sectionStart
+     * @param sectionStop
+     * @param k Index to select the element for; must be within the subsection.
+     * @param extractor
+     * @param <T>
+     */
+    public static <T> void arraySectionSelect(T[] arr, int sectionStart, int sectionStop, int k,
+                                              ToIntFunction<T> extractor) {
+        int low = sectionStart;
+        int high = sectionStop-1;
+        while (low < high) {
+            int pivot = extractor.applyAsInt(arr[(low+high) >>> 1]);
+            // Three-way partition, so runs of identical values (which are common) don't degrade it.
+            int lessEnd = low;
+            int greaterStart = high;
+            int i = low;
+            while (i <= greaterStart) {
+                int value = extractor.applyAsInt(arr[i]);
+                if (value < pivot) {
+                    T swap = arr[lessEnd];
+                    arr[lessEnd++] = arr[i];
+                    arr[i++] = swap;
+                } else if (value > pivot) {
+                    T swap = arr[greaterStart];
+                    arr[greaterStart--] = arr[i];
+                    arr[i] = swap;
+                } else {
+                    i++;
+                }
+            }
+            if (k < lessEnd) {
+                high = lessEnd-1;
+            } else if (k > greaterStart) {
+                low = greaterStart+1;
+            } else {
+                return;
+            }
+        }
+    }
+
     public static int getDistSquared(int xA, int zA, int xB, int zB) {
         int xDiff = xA-xB;
         int zDiff = zA-zB;
@@ -166,66 +242,74 @@ public class Helpers {
         return dx*dx+dy*dy;
     }
 
+    /**
+     * Cube-scale bounding box of a cylinder.
+     * @param feature
+     * @param length
+     * @param radius
+     * @param unit
+     * @param origin Center of the cylinder's base, in block coords.
+     * @return
+     */
     public static IntegerMinimumAABB cylinderBoundingBox(GenerationFeature feature, double length, double radius,
                                                          Vec3d unit, Vec3d origin) {
-        // For Cartesian coords, I use Minecraft's coord system - y-axis is vertical, x-axis is west-east (+x = east),
-        //      and z-axis is north-south (+z = south)
-        // I use ISO spherical coordinate conventions:
-        //      Theta as the polar angle (north-south position on a sphere), measuring the angle relative to the +y axis
-        //          E.g. theta=0 lines up with the +y axis, theta=pi/2 lines up with the x-z plane (horizontal)
-        //      Phi is the azimuthal angle, aka longitude (east-west position), measuring angle relative to the +z axis
-        //          E.g. phi=0 lines up with the +z axis, phi=pi/2 lines up with the +x axis
-        // Bounding box has to be at least the same size as the cylinder - so at at least outside the top/bottom edges,
-        // outside the +x/-x and +z/-z edges as well.
-        double theta = Math.PI/2-Math.atan2(unit.y, Math.sqrt(unit.z*unit.z+unit.x*unit.x));
-        double phi = Math.atan2(unit.x, unit.z);
-        int ySign = (theta <= Math.PI/2) ? 1 : -1;
-        double lengthYComponent = Math.cos(theta)*length;
-        double lengthHorizontalComponent = Math.sin(theta)*length;
-        // Project the circles at the cylinder's ends onto the x-z plane; find the x and z bounds of the subsequent
-        //  rotated ellipse. This uses the rotated standard ellipse equations given in
-        //  https://en.wikipedia.org/wiki/Ellipse#General_ellipse_2, just before the Polar Forms section. Note that, to
-        //  maintain consistency with Minecraft's asinine coordinate system, the coordinate labels are different from
-        //  that section - x in the original equation becomes z here, and y in the original equation becomes x here.
-        //  It takes the derivative of each:
-        //      z = a*cos(phi)*cos(t)-b*sin(phi)*sin(t)     ->      dz/dt = -a*cos(phi)*sin(t)-b*sin(phi)*cos(t)
-        //      x = a*sin(phi)*cos(t)+b*cos(phi)*sin(t)     ->      dx/dt = -a*sin(phi)*sin(t)+b*cos(phi)*cos(t)
-        //  Then setting a given derivative to zero, solving for t, and plugging that into the original equation to find
-        //  the maximum x & z values.
-        //      z: -a*cos(phi)*sin(t) = b*sin(phi)*cos(t)   ->      t = atan((b*sin(phi))/(-a*cos(phi)))
-        //      x: a*sin(phi)*sin(t) = b*cos(phi)*cos(t)    ->      t = atan((b*cos(phi))/(a*sin(phi)))
-        //  Note that for this I add pi/2 to phi, so that the ellipse is correctly oriented. I use a,b in their standard
-        //  format, with a >= b; however, the ellipse projected onto the x-z plane by the cylinder's ends is perpendicular
-        //  to the cylinder's primary direction (narrow side is in line with the cylinder).
-        //  So if the cylinder is pointed towards phi=0 (long axis is along +x axis), the ellipse's a-axis will actually
-        //  be aligned with the z-axis, which is pi/2 (90 degrees) off from the standard form. Hence, a pi/2 offset for
-        //  phi
-        double xSign = (phi >= 0) ? 1 : -1;
-        double zSign = (Math.abs(phi) < Math.PI/2) ? 1 : -1;
-        double a = radius;
-        double b = Math.abs(radius*Math.cos(theta));
-        double ellipsePhi = phi-Math.PI/2;
-        double ellipseZt = Math.atan2(-b*Math.sin(ellipsePhi),a*Math.cos(ellipsePhi));
-        double ellipseXt = Math.atan2(b*Math.cos(ellipsePhi),a*Math.sin(ellipsePhi));
-        double ellipseExtentZ = zSign * Math.abs(a*Math.cos(ellipsePhi)*Math.cos(ellipseZt)
-                - b*Math.sin(ellipsePhi)*Math.sin(ellipseZt));
-        double ellipseExtentX = xSign * Math.abs(a*Math.sin(ellipsePhi)*Math.cos(ellipseXt)
-                + b*Math.cos(ellipsePhi)*Math.sin(ellipseXt));
-
-        double y1 = lengthYComponent+Math.sin(theta)*radius*ySign+origin.y;
-        double y2 = Math.sin(theta)*radius*-ySign+origin.y;
-        double x1 = Math.cos(phi)*lengthHorizontalComponent+ellipseExtentX+origin.x;
-        double x2 = -ellipseExtentX+origin.x;
-        double z1 = Math.sin(phi)*lengthHorizontalComponent+ellipseExtentZ+origin.z;
-        double z2 = -ellipseExtentZ+origin.z;
+        return coneBoundingBox(feature, origin, origin.add(unit.scale(length)), radius, radius);
+    }
+
+    /**
+     * Cube-scale bounding box of a capped cone (or cylinder), given the disks at either end - which, the cone being
+     * their convex hull, bound it exactly. A disk of radius r, facing along the unit vector u, reaches r*sqrt(1-u.x^2)
+     * either side of its center along x, and likewise for y and z.
+     * @param feature
+     * @param start Center of the disk at one end, in block coords.
+     * @param end Center of the disk at the other end.
+     * @param startRadius
+     * @param endRadius
+     * @return
+     */
+    public static IntegerMinimumAABB coneBoundingBox(GenerationFeature feature, Vec3d start, Vec3d end,
+                                                     double startRadius, double endRadius) {
+        Vec3d axis = end.subtract(start);
+        double length = axis.length();
+        // A zero-length cone's just a disk facing nowhere in particular, so take it as a sphere.
+        double ux = (length == 0) ? 0 : axis.x/length;
+        double uy = (length == 0) ? 0 : axis.y/length;
+        double uz = (length == 0) ? 0 : axis.z/length;
+        double spreadX = Math.sqrt(Math.max(1-ux*ux, 0));
+        double spreadY = Math.sqrt(Math.max(1-uy*uy, 0));
+        double spreadZ = Math.sqrt(Math.max(1-uz*uz, 0));
+        return blockBoundsToCubes(feature,
+                Math.min(start.x-startRadius*spreadX, end.x-endRadius*spreadX),
+                Math.min(start.y-startRadius*spreadY, end.y-endRadius*spreadY),
+                Math.min(start.z-startRadius*spreadZ, end.z-endRadius*spreadZ),
+                Math.max(start.x+startRadius*spreadX, end.x+endRadius*spreadX),
+                Math.max(start.y+startRadius*spreadY, end.y+endRadius*spreadY),
+                Math.max(start.z+startRadius*spreadZ, end.z+endRadius*spreadZ));
+    }
 
+    /**
+     * Cube-scale bounding box of a sphere.
+     * @param feature
+     * @param center Center of the sphere, in block coords.
+     * @param radius Radius of the sphere, in blocks.
+     * @return
+     */
+    public static IntegerMinimumAABB sphereBoundingBox(GenerationFeature feature, Vec3d center, double radius) {
+        return blockBoundsToCubes(feature, center.x-radius, center.y-radius, center.z-radius,
+                center.x+radius, center.y+radius, center.z+radius);
+    }
+
+    /**
+     * Converts block-scale bounds to the cubes whose generation buffers (the cube, plus a block on each side) hold any
+     * block within them. Blocks are sampled at their integer coords, so only the blocks from ceil(min) to floor(max)
+     * count.
+     */
+    private static IntegerMinimumAABB blockBoundsToCubes(GenerationFeature feature, double minX, double minY,
+                                                         double minZ, double maxX, double maxY, double maxZ) {
         return new IntegerMinimumAABB(feature,
-                (int)Math.floor(Math.min(x1, x2)/16.0),
-                (int)Math.floor(Math.min(y1, y2)/16.0),
-                (int)Math.floor(Math.min(z1, z2)/16.0),
-                (int)Math.ceil(Math.max(x1, x2)/16.0),
-                (int)Math.ceil(Math.max(y1, y2)/16.0),
-                (int)Math.ceil(Math.max(z1, z2)/16.0));
+                Coords.blockToCube((int) Math.ceil(minX)-1), Coords.blockToCube((int) Math.ceil(minY)-1),
+                Coords.blockToCube((int) Math.ceil(minZ)-1), Coords.blockToCube((int) Math.floor(maxX)+1),
+                Coords.blockToCube((int) Math.floor(maxY)+1), Coords.blockToCube((int) Math.floor(maxZ)+1));
     }
 
     public static boolean effectivelyZero(double d) {
@@ -260,10 +344,91 @@ public class Helpers {
         return vec1Origin.add(vec1Unit.scale(distToClosestPoint));
     }
 
+    /**
+     * Mixes a value into a running 64-bit hash (FNV-1a style). Unlike Object.hashCode(), the result is stable across
+     * runs, so it can be persisted.
+     * @param hash
+     * @param value
+     * @return
+     */
+    public static long hashMix(long hash, long value) {
+        for (int i = 0; i < 64; i += 8) {
+            hash ^= (value >>> i) & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    public static long hashMix(long hash, double value) {
+        return hashMix(hash, Double.doubleToLongBits(value));
+    }
+
+    /**
+     * Derives an independent seed from a parent seed and two values identifying the child, e.g. its position and
+     * index. Same inputs always give the same seed, no matter what else has been derived from the parent.
+     * @param parentSeed
+     * @param a
+     * @param b
+     * @return
+     */
+    public static long deriveSeed(long parentSeed, long a, long b) {
+        long z = hashMix(hashMix(parentSeed, a), b);
+        // SplitMix64's finalizer, so nearby inputs give unrelated seeds.
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    public static void writeVec3d(DataOutput out, Vec3d vec) throws IOException {
+        out.writeDouble(vec.x);
+        out.writeDouble(vec.y);
+        out.writeDouble(vec.z);
+    }
+
+    /**
+     * Reads a stored array length, and makes sure what's left of the buffer could actually hold that many elements, so
+     * a corrupt length fails here instead of allocating a negative or enormous array.
+     * @param in
+     * @param elementBytes The fewest bytes each element takes up in the buffer.
+     * @return
+     */
+    public static int readLength(ByteBuffer in, int elementBytes) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()/elementBytes) {
+            throw new InvalidValueException("Stored length "+length+" doesn't fit in the "+in.remaining()
+                    +" bytes left.");
+        }
+        return length;
+    }
+
+    public static Vec3d readVec3d(ByteBuffer in) {
+        return new Vec3d(in.getDouble(), in.getDouble(), in.getDouble());
+    }
+
+    public static void writeStemVec3d(DataOutput out, StemVec3d vec) throws IOException {
+        out.writeDouble(vec.x);
+        out.writeDouble(vec.y);
+        out.writeDouble(vec.z);
+    }
+
+    public static StemVec3d readStemVec3d(ByteBuffer in) {
+        return new StemVec3d(in.getDouble(), in.getDouble(), in.getDouble());
+    }
+
     public static double square(double d) {
         return d*d;
     }
 
+    /**
+     * Conservatively checks if the cylinder reaches the cube's generation buffer (the cube, plus a block on each side),
+     * by treating the buffer as the sphere around it.
+     * @param origin Center of the cylinder's base.
+     * @param unit
+     * @param radius
+     * @param length
+     * @param pos
+     * @return
+     */
     public static boolean cubeIntersectsCylinder(Vec3d origin, Vec3d unit, double radius, double length,
                                   CubePos pos) {
         Vec3d cubeVector = new Vec3d(
@@ -272,10 +437,26 @@ public class Helpers {
                 pos.getZCenter()-origin.z);
         double dot = unit.dotProduct(cubeVector); // cube vector's length along the cylinder's main axis
         double radial2 = cubeVector.lengthSquared()-dot*dot; // cube vector's radial distance, squared
-        if ((dot >= 0) && (dot <= length) && (radial2 <= (radius+8)*(radius+8))) {
-            return true;
-        }
-        return false;
+        return (dot >= -Constants.cubeBufferRadius) && (dot <= length+Constants.cubeBufferRadius)
+                && (radial2 <= (radius+Constants.cubeBufferRadius)*(radius+Constants.cubeBufferRadius));
+    }
+
+    /**
+     * Checks if the sphere reaches the cube's generation buffer (the cube, plus a block on each side).
+     * @param center
+     * @param radius
+     * @param pos
+     * @return
+     */
+    public static boolean sphereIntersectsCube(Vec3d center, double radius, CubePos pos) {
+        double dx = distanceOutside(center.x, pos.getMinBlockX()-1, pos.getMinBlockX()+ICube.SIZE+1);
+        double dy = distanceOutside(center.y, pos.getMinBlockY()-1, pos.getMinBlockY()+ICube.SIZE+1);
+        double dz = distanceOutside(center.z, pos.getMinBlockZ()-1, pos.getMinBlockZ()+ICube.SIZE+1);
+        return dx*dx+dy*dy+dz*dz <= radius*radius;
+    }
+
+    private static double distanceOutside(double value, double min, double max) {
+        return (value < min) ? min-value : (value > max) ? value-max : 0;
     }
 
     public enum PrincipalAxis {
@@ -1,95 +1,1015 @@
 package com.joekeen03.yggdrasil.util;
 
+import com.joekeen03.yggdrasil.config.YggdrasilConfig;
 import com.joekeen03.yggdrasil.world.structure.generationFeatures.GenerationFeature;
 import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
+/**
+ * Bounding volume hierarchy over a set of generation features, flattened into a single int array.
+ * Nodes are stored in depth-first (preorder) order, NODE_STRIDE ints each: the bounds (inclusive, cube coordinates),
+ *  the index of the first node after this node's subtree, and the feature index (-1 for internal nodes). An internal
+ *  node's left child is always the node right after it, so a query never needs a stack: if a node's box contains the
+ *  point, step to the next node; otherwise, skip past its subtree.
+ * Features are reordered to match the order of the leaves, so leaves near each other in the tree are near each other
+ *  in the feature array too.
+ * How the boxes are split between each node's children is selectable (see {@link SplitStrategy}); to help pick one,
+ *  each tree records its depth, and queries across all trees are counted, along with how many leaves they reached.
+ * Leaves' boxes are only as tight as the cubes they cover, which for long diagonal branches is mostly empty space; so
+ *  each feature's {@link BoundingCapsule}, if it has one, is kept in a flat array alongside the nodes, and checked
+ *  against the cube once its leaf's box matches - before the feature itself is ever touched.
+ * Some features only find out where they actually reach once they're built (see
+ *  {@link GenerationFeature#getRefinedBoundingBox}); the first query to reach one of those after that refits its leaf,
+ *  and the leaf's ancestors, to the tighter bounds. Boxes only ever shrink towards bounds that still hold everything,
+ *  so a query racing a refit sees either the old bounds or the new for each value, and is right either way.
+ */
 public class IntegerAABBTree {
-    public final IntegerAABBTreeNode root;
+    public static final int NODE_STRIDE = 8;
+    private static final int MIN_X = 0;
+    private static final int MIN_Y = 1;
+    private static final int MIN_Z = 2;
+    private static final int MAX_X = 3;
+    private static final int MAX_Y = 4;
+    private static final int MAX_Z = 5;
+    private static final int SKIP = 6;
+    private static final int FEATURE = 7;
+    // Per feature: the capsule's start, the vector to its end, and its radius plus the cube buffer's.
+    private static final int CAPSULE_STRIDE = 7;
+    // Rough size of an array's header, plus this object.
+    private static final long OVERHEAD_BYTES = 64;
+    // Subsections with at least this many boxes are built as their own fork-join tasks.
+    private static final int PARALLEL_MIN_FEATURES = 4096;
+    private static final int SAH_BINS = 16;
+    private static final int SPLIT_KEYS = 6;
+
+    private static final LongAdder queries = new LongAdder();
+    private static final LongAdder leavesVisited = new LongAdder();
+    // Leaves whose boxes contained the cube, and how many of those their capsules, then intersectsCube, turned away.
+    private static final LongAdder leavesMatched = new LongAdder();
+    private static final LongAdder leavesCapsuleCulled = new LongAdder();
+    private static final LongAdder leavesCulled = new LongAdder();
+    // Box queries, and the cubes they covered between them.
+    private static final LongAdder boxQueries = new LongAdder();
+    private static final LongAdder boxQueryCubes = new LongAdder();
+    private static final LongAdder leavesRefit = new LongAdder();
+
+    private final GenerationFeature[] features;
+    private final int[] nodes;
+    private final double[] capsules;
+    // Node holding each feature's leaf, and whether it's still waiting on the feature's refined bounds.
+    private final int[] leafNodes;
+    private final boolean[] refitPending;
+    private final int nodeCount;
+    private final int depth;
+    // Only worked out for trees which are asked for it, i.e. whole trees, not the ones each lazy branch builds.
+    private volatile CubeOccupancy occupancy;
+    // Likewise, and only if it's turned on; see YggdrasilConfig.cubeFeatureIndex.
+    private volatile CubeFeatureIndex cubeIndex;
+    // Likewise; see YggdrasilConfig.bakeTrees.
+    private volatile BakedTree baked;
+    // Each of those is set up under its own lock, never this tree's monitor: refitting takes that, and baking waits on
+    //  other threads querying (and so refitting) this tree.
+    private final Object occupancyLock = new Object();
+    private final Object cubeIndexLock = new Object();
+    private final Object bakeLock = new Object();
+
+    public enum SplitStrategy {
+        /** Average of the smallest and largest min coordinate along the longest axis; the original split. */
+        MIDPOINT,
+        /** Median box center along the longest axis; always balanced. */
+        MEDIAN,
+        /** Surface area heuristic over binned box centers; usually the fewest leaves reached per query. */
+        SAH
+    }
 
     public IntegerAABBTree(@Nonnull GenerationFeature[] shapes) {
-        IntegerMinimumAABB[] boundingBoxes = new IntegerMinimumAABB[shapes.length];
-        for (int i = 0; i < shapes.length; i++) {
+        this(shapes, YggdrasilConfig.bvhSplitStrategy);
+    }
+
+    public IntegerAABBTree(@Nonnull GenerationFeature[] shapes, @Nonnull SplitStrategy splitStrategy) {
+        int featureCount = shapes.length;
+        this.features = new GenerationFeature[featureCount];
+        this.nodeCount = (featureCount == 0) ? 0 : 2*featureCount-1;
+        this.nodes = new int[nodeCount*NODE_STRIDE];
+        IntegerMinimumAABB[] boundingBoxes = new IntegerMinimumAABB[featureCount];
+        for (int i = 0; i < featureCount; i++) {
             boundingBoxes[i] = shapes[i].getMinimumBoundingBox();
         }
-        root = computeNode(boundingBoxes, 0, boundingBoxes.length);
+        if (featureCount == 0) {
+            this.depth = 0;
+        } else {
+            BuildTask rootTask = new BuildTask(boundingBoxes, 0, featureCount, 0, splitStrategy);
+            if (YggdrasilConfig.parallelTreeBuild && (featureCount >= PARALLEL_MIN_FEATURES)) {
+                // Subsections are then split off as fork-join tasks; see computeNode
+                this.depth = ForkJoinPool.commonPool().invoke(rootTask);
+            } else {
+                this.depth = rootTask.compute();
+            }
+        }
+        this.capsules = computeCapsules(features);
+        this.leafNodes = new int[featureCount];
+        this.refitPending = new boolean[featureCount];
+        initRefits();
         /* Logic:
          *  At each level, take the current array of objects (array + subsection start/stop)
-         *  If that array only contains one object, return a leaf node (object's bounding box, null children);
+         *  If that array only contains one object, write a leaf node (object's bounding box and feature);
          *  Otherwise:
          *      Generate the bounding box for the array - 6*O(n)
-         *      Partition the array along the bounding box's longest dimension - O(n)
-         *          Probably take the average minC (where C is the axis to partition along), and partition around that.
-         *          Or use the median minC?
-         *      Compute the nodes for each of those partitions (recursive call)
+         *      Partition the array, according to the split strategy - O(n)
+         *      Write the nodes for each of those partitions right after this one (recursive call)
+         *  A subsection of n boxes always takes up 2n-1 nodes, so where each partition's nodes go is known before
+         *  either is built, and the two can be built in parallel.
          */
     }
 
     /**
-     * For the specified subsection of AABBs, recursively builds the minimum AABB tree and returns the root node of it.
+     * Wraps an already-built hierarchy, e.g. one loaded from disk.
+     * @param features Every feature referenced by the hierarchy's leaves, in leaf order.
+     * @param nodes Flattened nodes, as returned by {@link #getNodeData()}.
+     */
+    public IntegerAABBTree(@Nonnull GenerationFeature[] features, @Nonnull int[] nodes) {
+        if (nodes.length % NODE_STRIDE != 0) {
+            throw new InvalidValueException("BVH node data length "+nodes.length+" isn't a multiple of "+NODE_STRIDE+".");
+        }
+        this.features = features;
+        this.nodes = nodes;
+        this.nodeCount = nodes.length/NODE_STRIDE;
+        validateShape();
+        this.depth = computeDepth();
+        this.capsules = computeCapsules(features);
+        this.leafNodes = new int[features.length];
+        this.refitPending = new boolean[features.length];
+        initRefits();
+    }
+
+    /**
+     * Checks the nodes make up a hierarchy that queries and refits can walk without leaving the arrays: every
+     * internal node's two children exactly cover the rest of its subtree, every leaf's a single node, and each
+     * feature's in exactly one leaf.
+     */
+    private void validateShape() {
+        if (nodeCount != ((features.length == 0) ? 0 : 2*features.length-1)) {
+            throw new InvalidValueException("BVH has "+nodeCount+" nodes, but "+features.length+" features.");
+        }
+        if (nodeCount == 0) {
+            return;
+        }
+        boolean[] seen = new boolean[features.length];
+        // Nodes still to check, each with where its subtree has to end.
+        int[] pending = new int[64];
+        int pendingCount = 0;
+        pending[pendingCount++] = 0;
+        pending[pendingCount++] = nodeCount;
+        while (pendingCount > 0) {
+            int end = pending[--pendingCount];
+            int node = pending[--pendingCount];
+            int skip = nodes[node*NODE_STRIDE+SKIP];
+            int feature = nodes[node*NODE_STRIDE+FEATURE];
+            if (skip != end) {
+                throw new InvalidValueException("BVH node "+node+"'s subtree should end at "+end+", not "+skip+".");
+            }
+            if (feature >= 0) {
+                if ((skip != node+1) || (feature >= features.length) || seen[feature]) {
+                    throw new InvalidValueException("BVH leaf "+node+" is malformed.");
+                }
+                seen[feature] = true;
+                continue;
+            }
+            int left = node+1;
+            int right = (left < end) ? nodes[left*NODE_STRIDE+SKIP] : end;
+            if ((feature != -1) || (right <= left) || (right >= end)) {
+                throw new InvalidValueException("BVH node "+node+" is malformed.");
+            }
+            if (pendingCount+4 > pending.length) {
+                pending = Arrays.copyOf(pending, pending.length*2);
+            }
+            pending[pendingCount++] = left;
+            pending[pendingCount++] = right;
+            pending[pendingCount++] = right;
+            pending[pendingCount++] = end;
+        }
+    }
+
+    private void initRefits() {
+        for (int node = 0; node < nodeCount; node++) {
+            int feature = nodes[node*NODE_STRIDE+FEATURE];
+            if (feature >= 0) {
+                leafNodes[feature] = node;
+                refitPending[feature] = features[feature].mayRefineBoundingBox();
+            }
+        }
+    }
+
+    /**
+     * If the feature's refined its bounds, shrinks its leaf's box to them, then each of its ancestors' boxes to the
+     * union of their children's. Only takes as long as the tree is deep.
+     * @param feature
+     */
+    private void tryRefit(int feature) {
+        IntegerAABB refined = features[feature].getRefinedBoundingBox();
+        if (refined == null) {
+            return;
+        }
+        synchronized (this) {
+            if (!refitPending[feature]) {
+                return;
+            }
+            int leaf = leafNodes[feature];
+            int base = leaf*NODE_STRIDE;
+            // Never grow the box; the old one's still valid, so whatever's in both is too.
+            writeBounds(base, Math.max(nodes[base+MIN_X], refined.minX), Math.max(nodes[base+MIN_Y], refined.minY),
+                    Math.max(nodes[base+MIN_Z], refined.minZ), Math.min(nodes[base+MAX_X], refined.maxX),
+                    Math.min(nodes[base+MAX_Y], refined.maxY), Math.min(nodes[base+MAX_Z], refined.maxZ));
+            // Walk down to the leaf, noting the way: the left child's right after its parent, and the right child's
+            //  wherever the left child's subtree ends.
+            int[] path = new int[depth];
+            int pathLength = 0;
+            int node = 0;
+            while (node != leaf) {
+                path[pathLength++] = node;
+                int right = nodes[(node+1)*NODE_STRIDE+SKIP];
+                node = (leaf < right) ? node+1 : right;
+            }
+            for (int i = pathLength-1; i >= 0; i--) {
+                int parent = path[i]*NODE_STRIDE;
+                int left = (path[i]+1)*NODE_STRIDE;
+                int right = nodes[left+SKIP]*NODE_STRIDE;
+                writeBounds(parent, Math.min(nodes[left+MIN_X], nodes[right+MIN_X]),
+                        Math.min(nodes[left+MIN_Y], nodes[right+MIN_Y]),
+                        Math.min(nodes[left+MIN_Z], nodes[right+MIN_Z]),
+                        Math.max(nodes[left+MAX_X], nodes[right+MAX_X]),
+                        Math.max(nodes[left+MAX_Y], nodes[right+MAX_Y]),
+                        Math.max(nodes[left+MAX_Z], nodes[right+MAX_Z]));
+            }
+            refitPending[feature] = false;
+        }
+        leavesRefit.increment();
+    }
+
+    /**
+     * Flattens each feature's capsule, in feature order; features without one get an infinite radius, so they always
+     * pass.
+     * @param features
+     * @return
+     */
+    private static double[] computeCapsules(GenerationFeature[] features) {
+        double[] capsules = new double[features.length*CAPSULE_STRIDE];
+        for (int i = 0; i < features.length; i++) {
+            BoundingCapsule capsule = features[i].getBoundingCapsule();
+            int base = i*CAPSULE_STRIDE;
+            if (capsule == null) {
+                capsules[base+6] = Double.POSITIVE_INFINITY;
+                continue;
+            }
+            capsules[base] = capsule.start.x;
+            capsules[base+1] = capsule.start.y;
+            capsules[base+2] = capsule.start.z;
+            capsules[base+3] = capsule.end.x-capsule.start.x;
+            capsules[base+4] = capsule.end.y-capsule.start.y;
+            capsules[base+5] = capsule.end.z-capsule.start.z;
+            capsules[base+6] = capsule.radius+Constants.cubeBufferRadius;
+        }
+        return capsules;
+    }
+
+    /**
+     * Checks the feature's capsule against the cube's center; see {@link BoundingCapsule#reachesCube}.
+     */
+    private boolean capsuleReaches(int feature, double centerX, double centerY, double centerZ) {
+        int base = feature*CAPSULE_STRIDE;
+        double reach = capsules[base+6];
+        return (reach == Double.POSITIVE_INFINITY) || BoundingCapsule.reachesPoint(capsules[base], capsules[base+1],
+                capsules[base+2], capsules[base+3], capsules[base+4], capsules[base+5], reach,
+                centerX, centerY, centerZ);
+    }
+
+    /**
+     * Works out the depth of the hierarchy from the node data alone: walking the nodes in order, each node is one
+     * deeper than the innermost subtree it's still within.
+     * @return
+     */
+    private int computeDepth() {
+        int[] subtreeEnds = new int[64];
+        int open = 0;
+        int maxDepth = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            while ((open > 0) && (subtreeEnds[open-1] <= node)) {
+                open--;
+            }
+            if (open == subtreeEnds.length) {
+                subtreeEnds = Arrays.copyOf(subtreeEnds, open*2);
+            }
+            subtreeEnds[open++] = nodes[node*NODE_STRIDE+SKIP];
+            maxDepth = Math.max(maxDepth, open);
+        }
+        return maxDepth;
+    }
+
+    /**
+     * For the specified subsection of AABBs, recursively builds the minimum AABB tree, writing its nodes starting at
+     * the specified node.
      * @param boundingBoxes Array of AABBs
      * @param sectionStart Index of the first element in the subsection
-     * @param sectionStop Index of the last element in the subsection
-     * @return
+     * @param sectionStop Index after the last element in the subsection
+     * @param node Index of the node to write this subsection's root to
+     * @param splitStrategy
+     * @return Depth of the subsection's tree; 1 for a single leaf.
      */
-    public IntegerAABBTreeNode computeNode(IntegerMinimumAABB[] boundingBoxes, int sectionStart, int sectionStop) {
-        // Base case - the tree for a single AABB is
+    private int computeNode(IntegerMinimumAABB[] boundingBoxes, int sectionStart, int sectionStop, int node,
+                            SplitStrategy splitStrategy) {
+        int base = node*NODE_STRIDE;
+        // Base case - the tree for a single AABB is just a leaf.
         if ((sectionStop-sectionStart) == 1) {
-            return new IntegerAABBTreeLeaf(boundingBoxes[sectionStart]);
-        }
-        else {
-            IntegerAABB boundingBox = new IntegerAABB(
-                    Helpers.arraySectionMin(boundingBoxes, sectionStart, sectionStop, IntegerAABB::getMinX),
-                    Helpers.arraySectionMin(boundingBoxes, sectionStart, sectionStop, IntegerAABB::getMinY),
-                    Helpers.arraySectionMin(boundingBoxes, sectionStart, sectionStop, IntegerAABB::getMinZ),
-                    Helpers.arraySectionMax(boundingBoxes, sectionStart, sectionStop, IntegerAABB::getMaxX),
-                    Helpers.arraySectionMax(boundingBoxes, sectionStart, sectionStop, IntegerAABB::getMaxY),
-                    Helpers.arraySectionMax(boundingBoxes, sectionStart, sectionStop, IntegerAABB::getMaxZ));
-            int partitionPoint;
-            // TODO Use the median minX/minY/minZ for the partition point, instead of the average - that should ensure
-            //  the bounding boxes are evenly distributed between the two children, especially given that the tree will
-            //  have more bounding boxes towards its exterior than its interior (smaller and smaller branches)
-            //  Or, use Z-ordering to sort the bounding boxes, then
-            // X-axis is the longest dimension
-            if ((boundingBox.lengthX > boundingBox.lengthY) && (boundingBox.lengthX > boundingBox.lengthZ)) {
-                // Want to use the average of the largest and smallest minX value, as that is guaranteed to split off
-                //  at least one box; if I used the center of the box (minX+lengthX/2), there are cases where it would
-                //  never partition boxes, leading to infinite recursion. Example would be two boxes that are both the
-                //  same lengthX, but slightly different minX (position).
-                int maxMinX = Helpers.arraySectionMax(boundingBoxes, sectionStart, sectionStop, IntegerAABB::getMinX);
-                partitionPoint = Helpers.arraySectionPartition(boundingBoxes, sectionStart, sectionStop,
-                        (maxMinX+boundingBox.minX)/2, IntegerAABB::getMinX);
-            }
-            // Y-axis is the longest dimension
-            else if (boundingBox.lengthY > boundingBox.lengthZ) {
-                int maxMinY = Helpers.arraySectionMax(boundingBoxes, sectionStart, sectionStop, IntegerAABB::getMinY);
-                partitionPoint = Helpers.arraySectionPartition(boundingBoxes, sectionStart, sectionStop,
-                        (maxMinY+boundingBox.minY)/2, IntegerAABB::getMinY);
-            }
-            // Z-axis is the longest dimension
-            else {
-                int maxMinZ = Helpers.arraySectionMax(boundingBoxes, sectionStart, sectionStop, IntegerAABB::getMinZ);
-                partitionPoint = Helpers.arraySectionPartition(boundingBoxes, sectionStart, sectionStop,
-                        (maxMinZ+boundingBox.minZ)/2, IntegerAABB::getMinZ);
-            }
-            // In case the array partition method returns sectionStart - prevent infinite recursion.
-            //  Kinda a hacky way - perhaps a better way to handle this?
-            partitionPoint = Math.max(sectionStart+1, partitionPoint);
-            // Compute children and return current tree.
-            return new IntegerAABBTreeNode(boundingBox,
-                    computeNode(boundingBoxes, sectionStart, partitionPoint),
-                    computeNode(boundingBoxes, partitionPoint, sectionStop));
-        }
-    }
-
-    /**
-     * Does something for each leaf the specified point is contained w/in
+            IntegerMinimumAABB box = boundingBoxes[sectionStart];
+            writeBounds(base, box.minX, box.minY, box.minZ, box.maxX, box.maxY, box.maxZ);
+            // Partitioning keeps each subsection contiguous, so the leaves come out in the same order as the boxes.
+            features[sectionStart] = box.wrappedFeature;
+            nodes[base+FEATURE] = sectionStart;
+            nodes[base+SKIP] = node+1;
+            return 1;
+        }
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        for (int i = sectionStart; i < sectionStop; i++) {
+            IntegerMinimumAABB box = boundingBoxes[i];
+            minX = Math.min(minX, box.minX);
+            minY = Math.min(minY, box.minY);
+            minZ = Math.min(minZ, box.minZ);
+            maxX = Math.max(maxX, box.maxX);
+            maxY = Math.max(maxY, box.maxY);
+            maxZ = Math.max(maxZ, box.maxZ);
+        }
+        writeBounds(base, minX, minY, minZ, maxX, maxY, maxZ);
+        nodes[base+FEATURE] = -1;
+        nodes[base+SKIP] = node+2*(sectionStop-sectionStart)-1;
+
+        int partitionPoint;
+        switch (splitStrategy) {
+            case MIDPOINT:
+                partitionPoint = midpointSplit(boundingBoxes, sectionStart, sectionStop,
+                        longestAxis(maxX-minX, maxY-minY, maxZ-minZ), minX, minY, minZ);
+                break;
+            case SAH:
+                partitionPoint = surfaceAreaSplit(boundingBoxes, sectionStart, sectionStop);
+                break;
+            case MEDIAN:
+            default:
+                partitionPoint = medianSplit(boundingBoxes, sectionStart, sectionStop,
+                        longestAxis(maxX-minX, maxY-minY, maxZ-minZ));
+                break;
+        }
+        // Left child goes right after this node, and the right child right after the left child's subtree.
+        int leftNode = node+1;
+        int rightNode = node+2*(partitionPoint-sectionStart);
+        if (((sectionStop-sectionStart) >= PARALLEL_MIN_FEATURES) && ForkJoinTask.inForkJoinPool()) {
+            BuildTask leftTask = new BuildTask(boundingBoxes, sectionStart, partitionPoint, leftNode, splitStrategy);
+            BuildTask rightTask = new BuildTask(boundingBoxes, partitionPoint, sectionStop, rightNode, splitStrategy);
+            ForkJoinTask.invokeAll(leftTask, rightTask);
+            return 1+Math.max(leftTask.join(), rightTask.join());
+        }
+        int leftDepth = computeNode(boundingBoxes, sectionStart, partitionPoint, leftNode, splitStrategy);
+        int rightDepth = computeNode(boundingBoxes, partitionPoint, sectionStop, rightNode, splitStrategy);
+        return 1+Math.max(leftDepth, rightDepth);
+    }
+
+    /**
+     * Returns which axis is longest: 0 for x, 1 for y, 2 for z.
+     */
+    private static int longestAxis(int lengthX, int lengthY, int lengthZ) {
+        if ((lengthX > lengthY) && (lengthX > lengthZ)) {
+            return 0;
+        }
+        return (lengthY > lengthZ) ? 1 : 2;
+    }
+
+    /**
+     * Twice the center of the box along the specified axis - doubled, so it's still an integer.
+     */
+    private static int doubleCenter(IntegerAABB box, int axis) {
+        switch (axis) {
+            case 0:
+                return box.minX+box.maxX;
+            case 1:
+                return box.minY+box.maxY;
+            default:
+                return box.minZ+box.maxZ;
+        }
+    }
+
+    /**
+     * The original split: partitions around the average of the smallest and largest min coordinate along the longest
+     * axis. Cheap, but can be very unbalanced, since small outer branches vastly outnumber trunk segments.
+     * @return The partition point; always strictly within the subsection.
+     */
+    private static int midpointSplit(IntegerMinimumAABB[] boundingBoxes, int sectionStart, int sectionStop, int axis,
+                                     int minX, int minY, int minZ) {
+        int partitionPoint;
+        // Want to use the average of the largest and smallest min value, as that is guaranteed to split off at least
+        //  one box; if I used the center of the box (minX+lengthX/2), there are cases where it would never partition
+        //  boxes, leading to infinite recursion. Example would be two boxes that are both the same lengthX, but
+        //  slightly different minX (position).
+        if (axis == 0) {
+            int maxMinX = Helpers.arraySectionMax(boundingBoxes, sectionStart, sectionStop, IntegerAABB::getMinX);
+            partitionPoint = Helpers.arraySectionPartition(boundingBoxes, sectionStart, sectionStop,
+                    (maxMinX+minX)/2, IntegerAABB::getMinX);
+        } else if (axis == 1) {
+            int maxMinY = Helpers.arraySectionMax(boundingBoxes, sectionStart, sectionStop, IntegerAABB::getMinY);
+            partitionPoint = Helpers.arraySectionPartition(boundingBoxes, sectionStart, sectionStop,
+                    (maxMinY+minY)/2, IntegerAABB::getMinY);
+        } else {
+            int maxMinZ = Helpers.arraySectionMax(boundingBoxes, sectionStart, sectionStop, IntegerAABB::getMinZ);
+            partitionPoint = Helpers.arraySectionPartition(boundingBoxes, sectionStart, sectionStop,
+                    (maxMinZ+minZ)/2, IntegerAABB::getMinZ);
+        }
+        // In case the array partition method returns sectionStart - prevent infinite recursion.
+        //  Kinda a hacky way - perhaps a better way to handle this?
+        return Math.min(sectionStop-1, Math.max(sectionStart+1, partitionPoint));
+    }
+
+    /**
+     * Splits the subsection in half, around the median box center along the specified axis. Always gives a balanced
+     * tree.
+     * @return The partition point; always strictly within the subsection.
+     */
+    private static int medianSplit(IntegerMinimumAABB[] boundingBoxes, int sectionStart, int sectionStop, int axis) {
+        int partitionPoint = (sectionStart+sectionStop) >>> 1;
+        Helpers.arraySectionSelect(boundingBoxes, sectionStart, sectionStop, partitionPoint,
+                box -> doubleCenter(box, axis));
+        return partitionPoint;
+    }
+
+    /**
+     * Splits the subsection where the surface area heuristic says a query is cheapest: each possible split's cost is
+     * the surface area of each side's bounds times the number of boxes on that side. Boxes are binned by their center
+     * along each axis, and also by their min coordinate - which keeps the huge bounds of lazy branches together, away
+     * from the small segments their centers land among - and only the boundaries between bins are considered.
+     * Falls back to the median split if every box has the same center.
+     * @return The partition point; always strictly within the subsection.
+     */
+    private static int surfaceAreaSplit(IntegerMinimumAABB[] boundingBoxes, int sectionStart, int sectionStop) {
+        double bestCost = Double.POSITIVE_INFINITY;
+        int bestKey = -1;
+        int bestBin = -1;
+        int[] keyMin = new int[SPLIT_KEYS];
+        int[] keySpan = new int[SPLIT_KEYS];
+        int[] binCounts = new int[SAH_BINS];
+        int[] binBounds = new int[SAH_BINS*6];
+        double[] rightAreas = new double[SAH_BINS];
+        int[] sweep = new int[6];
+        int longestCenterAxis = 0;
+        for (int key = 0; key < SPLIT_KEYS; key++) {
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (int i = sectionStart; i < sectionStop; i++) {
+                int value = splitKey(boundingBoxes[i], key);
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            keyMin[key] = min;
+            keySpan[key] = max-min+1;
+            if ((key < 3) && (keySpan[key] > keySpan[longestCenterAxis])) {
+                longestCenterAxis = key;
+            }
+            if (max == min) {
+                continue;
+            }
+            Arrays.fill(binCounts, 0);
+            for (int bin = 0; bin < SAH_BINS; bin++) {
+                initEmptyBounds(binBounds, bin*6);
+            }
+            for (int i = sectionStart; i < sectionStop; i++) {
+                IntegerMinimumAABB box = boundingBoxes[i];
+                int bin = sahBin(splitKey(box, key), min, keySpan[key]);
+                binCounts[bin]++;
+                growBounds(binBounds, bin*6, box.minX, box.minY, box.minZ, box.maxX, box.maxY, box.maxZ);
+            }
+            // Sweep from the right, recording the area of everything right of each boundary...
+            initEmptyBounds(sweep, 0);
+            for (int bin = SAH_BINS-1; bin > 0; bin--) {
+                growBounds(sweep, 0, binBounds[bin*6], binBounds[bin*6+1], binBounds[bin*6+2],
+                        binBounds[bin*6+3], binBounds[bin*6+4], binBounds[bin*6+5]);
+                rightAreas[bin] = surfaceArea(sweep);
+            }
+            // ...then from the left, costing each boundary.
+            initEmptyBounds(sweep, 0);
+            int leftCount = 0;
+            for (int bin = 0; bin < SAH_BINS-1; bin++) {
+                leftCount += binCounts[bin];
+                growBounds(sweep, 0, binBounds[bin*6], binBounds[bin*6+1], binBounds[bin*6+2],
+                        binBounds[bin*6+3], binBounds[bin*6+4], binBounds[bin*6+5]);
+                int rightCount = (sectionStop-sectionStart)-leftCount;
+                if ((leftCount == 0) || (rightCount == 0)) {
+                    continue;
+                }
+                double cost = surfaceArea(sweep)*leftCount+rightAreas[bin+1]*rightCount;
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestKey = key;
+                    bestBin = bin;
+                }
+            }
+        }
+        if (bestKey == -1) {
+            return medianSplit(boundingBoxes, sectionStart, sectionStop, longestCenterAxis);
+        }
+        int key = bestKey;
+        int splitBin = bestBin;
+        int min = keyMin[key];
+        int span = keySpan[key];
+        return Helpers.arraySectionPartition(boundingBoxes, sectionStart, sectionStop,
+                box -> sahBin(splitKey(box, key), min, span) <= splitBin);
+    }
+
+    /**
+     * Value the surface area heuristic bins boxes by: 0-2 are the (doubled) center along x/y/z, 3-5 the min x/y/z.
+     */
+    private static int splitKey(IntegerAABB box, int key) {
+        switch (key) {
+            case 3:
+                return box.minX;
+            case 4:
+                return box.minY;
+            case 5:
+                return box.minZ;
+            default:
+                return doubleCenter(box, key);
+        }
+    }
+
+    private static int sahBin(int center, int min, int span) {
+        return (int) (((long) (center-min))*SAH_BINS/span);
+    }
+
+    private static void initEmptyBounds(int[] bounds, int offset) {
+        bounds[offset] = bounds[offset+1] = bounds[offset+2] = Integer.MAX_VALUE;
+        bounds[offset+3] = bounds[offset+4] = bounds[offset+5] = Integer.MIN_VALUE;
+    }
+
+    private static void growBounds(int[] bounds, int offset, int minX, int minY, int minZ, int maxX, int maxY,
+                                   int maxZ) {
+        bounds[offset] = Math.min(bounds[offset], minX);
+        bounds[offset+1] = Math.min(bounds[offset+1], minY);
+        bounds[offset+2] = Math.min(bounds[offset+2], minZ);
+        bounds[offset+3] = Math.max(bounds[offset+3], maxX);
+        bounds[offset+4] = Math.max(bounds[offset+4], maxY);
+        bounds[offset+5] = Math.max(bounds[offset+5], maxZ);
+    }
+
+    /**
+     * Surface area of the bounds, in cubes; max is inclusive. 0 for empty bounds.
+     */
+    private static double surfaceArea(int[] bounds) {
+        if (bounds[0] > bounds[3]) {
+            return 0;
+        }
+        double lengthX = (double) bounds[3]-bounds[0]+1;
+        double lengthY = (double) bounds[4]-bounds[1]+1;
+        double lengthZ = (double) bounds[5]-bounds[2]+1;
+        return 2*(lengthX*lengthY+lengthY*lengthZ+lengthZ*lengthX);
+    }
+
+    private void writeBounds(int base, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        nodes[base+MIN_X] = minX;
+        nodes[base+MIN_Y] = minY;
+        nodes[base+MIN_Z] = minZ;
+        nodes[base+MAX_X] = maxX;
+        nodes[base+MAX_Y] = maxY;
+        nodes[base+MAX_Z] = maxZ;
+    }
+
+    /**
+     * Finds every leaf the specified cube is contained w/in, and whose feature actually reaches the cube (see
+     * {@link #capsuleReaches} and {@link GenerationFeature#intersectsCube}), and puts their features in the results
+     * array.
+     * @param pos
+     * @param results Filled with the features found, in order; if it's too small, the features which don't fit are
+     *                left out, and the caller should retry with an array at least as long as the returned count.
+     * @return The number of features found, which may be more than the length of results.
+     */
+    public int query(CubePos pos, GenerationFeature[] results) {
+        int x = pos.getX();
+        int y = pos.getY();
+        int z = pos.getZ();
+        double centerX = pos.getXCenter();
+        double centerY = pos.getYCenter();
+        double centerZ = pos.getZCenter();
+        int found = 0;
+        int leaves = 0;
+        int matched = 0;
+        int capsuleCulled = 0;
+        int node = 0;
+        while (node < nodeCount) {
+            int base = node*NODE_STRIDE;
+            int feature = nodes[base+FEATURE];
+            if (feature >= 0) {
+                leaves++;
+            }
+            if ((x >= nodes[base+MIN_X]) && (x <= nodes[base+MAX_X])
+                    && (y >= nodes[base+MIN_Y]) && (y <= nodes[base+MAX_Y])
+                    && (z >= nodes[base+MIN_Z]) && (z <= nodes[base+MAX_Z])) {
+                if (feature >= 0) {
+                    matched++;
+                    if (refitPending[feature]) {
+                        tryRefit(feature);
+                    }
+                    if (!capsuleReaches(feature, centerX, centerY, centerZ)) {
+                        capsuleCulled++;
+                    } else if (features[feature].intersectsCube(pos)) {
+                        if (found < results.length) {
+                            results[found] = features[feature];
+                        }
+                        found++;
+                    }
+                }
+                // Either the left child, or for leaves, the node after this one - which is the same as the skip index.
+                node++;
+            } else {
+                node = nodes[base+SKIP];
+            }
+        }
+        recordQuery(leaves, matched, capsuleCulled, matched-capsuleCulled-found);
+        return found;
+    }
+
+    /**
+     * Does something for each leaf the specified cube is contained w/in, and whose feature reaches the cube.
      * @param pos
      * @param consumer
      */
     public void forEachLeaf(CubePos pos, Consumer<GenerationFeature> consumer) {
-        root.forEachLeaf(pos, consumer);
+        int x = pos.getX();
+        int y = pos.getY();
+        int z = pos.getZ();
+        double centerX = pos.getXCenter();
+        double centerY = pos.getYCenter();
+        double centerZ = pos.getZCenter();
+        int leaves = 0;
+        int matched = 0;
+        int capsuleCulled = 0;
+        int culled = 0;
+        int node = 0;
+        while (node < nodeCount) {
+            int base = node*NODE_STRIDE;
+            int feature = nodes[base+FEATURE];
+            if (feature >= 0) {
+                leaves++;
+            }
+            if ((x >= nodes[base+MIN_X]) && (x <= nodes[base+MAX_X])
+                    && (y >= nodes[base+MIN_Y]) && (y <= nodes[base+MAX_Y])
+                    && (z >= nodes[base+MIN_Z]) && (z <= nodes[base+MAX_Z])) {
+                if (feature >= 0) {
+                    matched++;
+                    if (refitPending[feature]) {
+                        tryRefit(feature);
+                    }
+                    if (!capsuleReaches(feature, centerX, centerY, centerZ)) {
+                        capsuleCulled++;
+                    } else if (features[feature].intersectsCube(pos)) {
+                        consumer.accept(features[feature]);
+                    } else {
+                        culled++;
+                    }
+                }
+                node++;
+            } else {
+                node = nodes[base+SKIP];
+            }
+        }
+        recordQuery(leaves, matched, capsuleCulled, culled);
+    }
+
+    /**
+     * Does something for each feature whose leaf's box overlaps the specified box (cube coordinates, inclusive). The
+     * features themselves aren't checked against anything; that's left to the consumer.
+     * @param box
+     * @param consumer
+     */
+    public void forEachOverlapping(IntegerAABB box, Consumer<GenerationFeature> consumer) {
+        int node = 0;
+        while (node < nodeCount) {
+            int base = node*NODE_STRIDE;
+            if ((box.maxX >= nodes[base+MIN_X]) && (box.minX <= nodes[base+MAX_X])
+                    && (box.maxY >= nodes[base+MIN_Y]) && (box.minY <= nodes[base+MAX_Y])
+                    && (box.maxZ >= nodes[base+MIN_Z]) && (box.minZ <= nodes[base+MAX_Z])) {
+                int feature = nodes[base+FEATURE];
+                if (feature >= 0) {
+                    consumer.accept(features[feature]);
+                }
+                node++;
+            } else {
+                node = nodes[base+SKIP];
+            }
+        }
+    }
+
+    /**
+     * Finds every feature reaching each cube in the specified box, in a single walk down the tree: subtrees are
+     * skipped against the whole box, and each leaf reached only checks its feature against the cubes its box shares
+     * with the query's. For cubes which are going to be generated together, e.g. a column of cubes, or a whole tree's.
+     * Each cube then gets exactly the features {@link #query(CubePos, GenerationFeature[])} would have found for it,
+     * in the same order.
+     * @param box Cubes to find features for (cube coordinates, inclusive).
+     * @return The features found for each cube.
+     */
+    public BoxQuery queryBox(IntegerAABB box) {
+        // Every (cube, feature) pair found, in the order the leaves are reached; cubes are indexed x major, then y.
+        int[] pairCubes = new int[64];
+        GenerationFeature[] pairFeatures = new GenerationFeature[64];
+        int pairCount = 0;
+        int node = 0;
+        while (node < nodeCount) {
+            int base = node*NODE_STRIDE;
+            if ((box.maxX >= nodes[base+MIN_X]) && (box.minX <= nodes[base+MAX_X])
+                    && (box.maxY >= nodes[base+MIN_Y]) && (box.minY <= nodes[base+MAX_Y])
+                    && (box.maxZ >= nodes[base+MIN_Z]) && (box.minZ <= nodes[base+MAX_Z])) {
+                int feature = nodes[base+FEATURE];
+                if (feature >= 0) {
+                    // The cubes the leaf covered when it was reached, just like query checks them before refitting.
+                    int fromX = Math.max(box.minX, nodes[base+MIN_X]), toX = Math.min(box.maxX, nodes[base+MAX_X]);
+                    int fromY = Math.max(box.minY, nodes[base+MIN_Y]), toY = Math.min(box.maxY, nodes[base+MAX_Y]);
+                    int fromZ = Math.max(box.minZ, nodes[base+MIN_Z]), toZ = Math.min(box.maxZ, nodes[base+MAX_Z]);
+                    if (refitPending[feature]) {
+                        tryRefit(feature);
+                    }
+                    for (int x = fromX; x <= toX; x++) {
+                        for (int y = fromY; y <= toY; y++) {
+                            for (int z = fromZ; z <= toZ; z++) {
+                                CubePos pos = new CubePos(x, y, z);
+                                if (!capsuleReaches(feature, pos.getXCenter(), pos.getYCenter(), pos.getZCenter())
+                                        || !features[feature].intersectsCube(pos)) {
+                                    continue;
+                                }
+                                if (pairCount == pairCubes.length) {
+                                    pairCubes = Arrays.copyOf(pairCubes, pairCount*2);
+                                    pairFeatures = Arrays.copyOf(pairFeatures, pairCount*2);
+                                }
+                                pairCubes[pairCount] = ((x-box.minX)*box.lengthY+(y-box.minY))*box.lengthZ
+                                        +(z-box.minZ);
+                                pairFeatures[pairCount] = features[feature];
+                                pairCount++;
+                            }
+                        }
+                    }
+                }
+                node++;
+            } else {
+                node = nodes[base+SKIP];
+            }
+        }
+        // Count each cube's features, turn the counts into where each cube's run starts, then fill the runs; each
+        //  cube's features stay in the order they were found.
+        int[] starts = new int[box.lengthX*box.lengthY*box.lengthZ+1];
+        for (int i = 0; i < pairCount; i++) {
+            starts[pairCubes[i]+1]++;
+        }
+        for (int i = 0; i < starts.length-1; i++) {
+            starts[i+1] += starts[i];
+        }
+        GenerationFeature[] entries = new GenerationFeature[pairCount];
+        int[] filled = Arrays.copyOf(starts, starts.length-1);
+        for (int i = 0; i < pairCount; i++) {
+            entries[filled[pairCubes[i]]++] = pairFeatures[i];
+        }
+        boxQueries.increment();
+        boxQueryCubes.add(starts.length-1);
+        return new BoxQuery(box, starts, entries);
+    }
+
+    private static void recordQuery(int leaves, int matched, int capsuleCulled, int culled) {
+        queries.increment();
+        leavesVisited.add(leaves);
+        leavesMatched.add(matched);
+        leavesCapsuleCulled.add(capsuleCulled);
+        leavesCulled.add(culled);
+    }
+
+    /**
+     * Number of levels in the hierarchy; 1 for a single leaf, 0 if empty.
+     * @return
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Summarizes the queries made across every tree so far: how many, how many leaves each reached on average
+     * (whether or not they contained the point), and how many leaves contained the cube but had their feature turned
+     * away by its capsule or by intersectsCube - each of which is a feature that didn't have to be rasterized. Fewer
+     * leaves reached means less wasted work per cube.
+     * @return
+     */
+    public static String getQueryStats() {
+        long queryCount = queries.sum();
+        double averageLeaves = (queryCount == 0) ? 0 : (double) leavesVisited.sum()/queryCount;
+        long matched = leavesMatched.sum();
+        long capsuleCulled = leavesCapsuleCulled.sum();
+        long culled = leavesCulled.sum();
+        double capsulePercent = (matched == 0) ? 0 : 100.0*capsuleCulled/matched;
+        double culledPercent = (matched == 0) ? 0 : 100.0*culled/matched;
+        return "BVH queries: "+queryCount+", average leaves visited: "+String.format("%.2f", averageLeaves)
+                +", of "+matched+" features matched, skipped by capsule: "+capsuleCulled
+                +String.format(" (%.1f%%)", capsulePercent)+", by intersectsCube: "+culled
+                +String.format(" (%.1f%%)", culledPercent)+", leaves refit to tighter bounds: "+leavesRefit.sum()
+                +", box queries: "+boxQueries.sum()+" over "+boxQueryCubes.sum()+" cubes";
+    }
+
+    /**
+     * Bounds of everything in the tree (cube coordinates, inclusive), or null if it's empty.
+     * @return
+     */
+    @Nullable
+    public IntegerAABB getBounds() {
+        if (nodeCount == 0) {
+            return null;
+        }
+        return new IntegerAABB(nodes[MIN_X], nodes[MIN_Y], nodes[MIN_Z], nodes[MAX_X], nodes[MAX_Y], nodes[MAX_Z]);
+    }
+
+    public int getFeatureCount() {
+        return features.length;
+    }
+
+    public GenerationFeature getFeature(int index) {
+        return features[index];
+    }
+
+    /**
+     * Returns the flattened nodes backing this tree, e.g. for storing it. Not a copy, so don't modify it.
+     * @return
+     */
+    public int[] getNodeData() {
+        return nodes;
+    }
+
+    /**
+     * The occupancy of each cube this tree's features reach; see {@link CubeOccupancy}.
+     * @return
+     */
+    public CubeOccupancy getOccupancy() {
+        CubeOccupancy result = occupancy;
+        if (result == null) {
+            synchronized (occupancyLock) {
+                result = occupancy;
+                if (result == null) {
+                    result = new CubeOccupancy(this);
+                    occupancy = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The index of which features reach each cube (see {@link CubeFeatureIndex}), built the first time it's asked for.
+     * @return
+     */
+    public CubeFeatureIndex getCubeIndex() {
+        CubeFeatureIndex result = cubeIndex;
+        if (result == null) {
+            synchronized (cubeIndexLock) {
+                result = cubeIndex;
+                if (result == null) {
+                    result = new CubeFeatureIndex(this);
+                    cubeIndex = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The index of which features reach each cube, or null if it hasn't been built.
+     * @return
+     */
+    @Nullable
+    public CubeFeatureIndex getCubeIndexIfBuilt() {
+        return cubeIndex;
+    }
+
+    /**
+     * Every block this tree places, if it's been baked; see {@link BakedTree}.
+     * @return
+     */
+    @Nullable
+    public BakedTree getBaked() {
+        return baked;
+    }
+
+    /**
+     * Bakes the tree, if it hasn't been already.
+     * @return
+     */
+    public BakedTree bake() {
+        BakedTree result = baked;
+        if (result == null) {
+            synchronized (bakeLock) {
+                result = baked;
+                if (result == null) {
+                    result = BakedTree.bake(this);
+                    baked = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Uses an already baked tree, e.g. one loaded alongside this; must have been baked from the same features.
+     * @param baked
+     */
+    public void setBaked(@Nullable BakedTree baked) {
+        this.baked = baked;
+    }
+
+    /**
+     * Estimates how much memory this tree keeps alive, including whatever its features have lazily created since it
+     * was built - so this can grow over time.
+     * @return
+     */
+    public long estimateRetainedBytes() {
+        long total = 4*OVERHEAD_BYTES + 4L*nodes.length + 8L*capsules.length + 13L*features.length;
+        CubeOccupancy builtOccupancy = occupancy;
+        if (builtOccupancy != null) {
+            total += builtOccupancy.estimateRetainedBytes();
+        }
+        CubeFeatureIndex builtIndex = cubeIndex;
+        if (builtIndex != null) {
+            total += builtIndex.estimateRetainedBytes();
+        }
+        BakedTree builtBaked = baked;
+        if (builtBaked != null) {
+            total += builtBaked.estimateRetainedBytes();
+        }
+        for (GenerationFeature feature : features) {
+            total += feature.estimateRetainedBytes();
+        }
+        return total;
+    }
+
+    /**
+     * The features found for each cube in a box; see {@link #queryBox}. Stored like a CSR matrix's rows: each cube's
+     * features are a run of one shared array.
+     */
+    public static final class BoxQuery {
+        private final IntegerAABB box;
+        // Cube i's features are entries[starts[i]] to entries[starts[i+1]-1].
+        private final int[] starts;
+        private final GenerationFeature[] entries;
+
+        private BoxQuery(IntegerAABB box, int[] starts, GenerationFeature[] entries) {
+            this.box = box;
+            this.starts = starts;
+            this.entries = entries;
+        }
+
+        public IntegerAABB getBox() {
+            return box;
+        }
+
+        /**
+         * Gets the features found for the specified cube, with the same contract as
+         * {@link IntegerAABBTree#query(CubePos, GenerationFeature[])}.
+         * @param pos Must be within the box.
+         * @param results
+         * @return
+         */
+        public int query(CubePos pos, GenerationFeature[] results) {
+            if (!box.isInBoundingBox(pos)) {
+                throw new InvalidValueException("Cube "+pos.getX()+","+pos.getY()+","+pos.getZ()
+                        +" is outside the queried box.");
+            }
+            int cube = ((pos.getX()-box.minX)*box.lengthY+(pos.getY()-box.minY))*box.lengthZ+(pos.getZ()-box.minZ);
+            int found = starts[cube+1]-starts[cube];
+            System.arraycopy(entries, starts[cube], results, 0, Math.min(found, results.length));
+            return found;
+        }
+    }
+
+    private class BuildTask extends RecursiveTask<Integer> {
+        private final IntegerMinimumAABB[] boundingBoxes;
+        private final int sectionStart, sectionStop, node;
+        private final SplitStrategy splitStrategy;
+
+        BuildTask(IntegerMinimumAABB[] boundingBoxes, int sectionStart, int sectionStop, int node,
+                  SplitStrategy splitStrategy) {
+            this.boundingBoxes = boundingBoxes;
+            this.sectionStart = sectionStart;
+            this.sectionStop = sectionStop;
+            this.node = node;
+            this.splitStrategy = splitStrategy;
+        }
+
+        @Override
+        protected Integer compute() {
+            return computeNode(boundingBoxes, sectionStart, sectionStop, node, splitStrategy);
+        }
     }
 }
@@ -1,6 +1,15 @@
 package com.joekeen03.yggdrasil.world;
 
+import com.joekeen03.yggdrasil.ModYggdrasil;
+import com.joekeen03.yggdrasil.config.YggdrasilConfig;
+import com.joekeen03.yggdrasil.util.BakedTree;
+import com.joekeen03.yggdrasil.util.CubeFeatureIndex;
+import com.joekeen03.yggdrasil.util.CubeOccupancy;
+import com.joekeen03.yggdrasil.util.IntegerAABBTree;
+import com.joekeen03.yggdrasil.world.structure.TreeCache;
 import com.joekeen03.yggdrasil.world.structure.TreeMegaStructureGenerator;
+import com.joekeen03.yggdrasil.world.structure.TreePrebuilder;
+import com.joekeen03.yggdrasil.world.structure.TreeStore;
 import io.github.opencubicchunks.cubicchunks.api.util.Box;
 import io.github.opencubicchunks.cubicchunks.api.util.Coords;
 import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
@@ -13,6 +22,10 @@ import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.World;
 import net.minecraft.world.biome.Biome;
 import net.minecraft.world.chunk.Chunk;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -23,12 +36,41 @@ public class TerrainGeneratorYggdrasil implements ICubeGenerator {
     protected long seed;
     private Biome[] columnBiomes;
     @Nonnull private TreeMegaStructureGenerator treeMegaGenerator;
+    // Owned per-world, so each dimension's trees are freed when it unloads, and worlds don't contend for one cache.
+    @Nonnull private final TreeCache treeCache;
+    @Nullable private final TreePrebuilder treePrebuilder;
 
     public TerrainGeneratorYggdrasil(World world, long seed) {
         this.world = world;
         this.seed = seed;
+        this.treeCache = new TreeCache(16);
         // TODO Post an event for this?
-        this.treeMegaGenerator = new TreeMegaStructureGenerator();
+        this.treeMegaGenerator = new TreeMegaStructureGenerator(treeCache, TreeStore.forWorld(world));
+        this.treePrebuilder = (YggdrasilConfig.prebuildThreads > 0)
+                ? new TreePrebuilder(world, treeMegaGenerator, YggdrasilConfig.prebuildThreads)
+                : null;
+        MinecraftForge.EVENT_BUS.register(this);
+    }
+
+    @SubscribeEvent
+    public void onWorldTick(TickEvent.WorldTickEvent event) {
+        if (event.phase == TickEvent.Phase.END && event.world == this.world && treePrebuilder != null) {
+            treePrebuilder.onTick();
+        }
+    }
+
+    @SubscribeEvent
+    public void onWorldUnload(WorldEvent.Unload event) {
+        if (event.getWorld() == this.world) {
+            if (treePrebuilder != null) {
+                treePrebuilder.shutdown();
+            }
+            ModYggdrasil.info("Releasing cached trees for unloaded world. "+treeCache.getStats()+". "
+                    +IntegerAABBTree.getQueryStats()+". "+CubeOccupancy.getLookupStats()
+                    +". "+CubeFeatureIndex.getLookupStats()+". "+BakedTree.getStats());
+            treeCache.clear();
+            MinecraftForge.EVENT_BUS.unregister(this);
+        }
     }
 
     @Override
@@ -119,6 +161,9 @@ public class TerrainGeneratorYggdrasil implements ICubeGenerator {
     }
 
     public void generateMegaStructures(CubePrimer cubePrimer, CubePos cubePos) {
+        if (treePrebuilder != null) {
+            treePrebuilder.onCubeRequested(cubePos);
+        }
         this.treeMegaGenerator.generate(this.world, cubePrimer, cubePos);
     }
 }
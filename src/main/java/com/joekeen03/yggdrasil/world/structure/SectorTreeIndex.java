@@ -0,0 +1,163 @@
+package com.joekeen03.yggdrasil.world.structure;
+
+import com.joekeen03.yggdrasil.util.IntegerAABB;
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
+
+/**
+ * The top level of finding which trees reach a cube: which sectors have a tree, and which trees might reach each
+ * sector's cubes, worked out once per sector instead of for every cube generated. Each tree's own IntegerAABBTree is
+ * the level below.
+ * A tree only reaches as far as the sectors adjacent to its own, so the top level's just a grid over sectors: each
+ * sector's cell lists the trees of it and its 26 neighbours, in the order cubes have always generated them in. Once a
+ * tree's been built, its bounds are remembered here - they never grow - so cubes outside them skip it without the
+ * tree being fetched from the cache, or rebuilt if it's been evicted.
+ * Belongs to a single world seed, whose sector random multipliers are only worked out the once.
+ */
+public class SectorTreeIndex {
+    private static final int COORD_BITS = 21;
+    private static final long COORD_MASK = (1L << COORD_BITS)-1;
+    private static final SectorTree[] NO_TREES = new SectorTree[0];
+    // Stands in for a sector without a tree, since the map can't hold null.
+    private static final SectorTree NO_TREE = new SectorTree(null, 0);
+
+    private final long seed;
+    private final long paramsHash;
+    private final long randXMul, randYMul, randZMul;
+    private final BiPredicate<Random, Integer> hasTree;
+    private final ConcurrentHashMap<Long, SectorTree> sectorTrees = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, SectorTree[]> cells = new ConcurrentHashMap<>();
+
+    /**
+     * @param seed World seed
+     * @param paramsHash Hash of the tree parameters the trees are grown from.
+     * @param hasTree Whether a sector has a tree, from its structure random and sector y coord; may consume from the
+     *                random.
+     */
+    public SectorTreeIndex(long seed, long paramsHash, BiPredicate<Random, Integer> hasTree) {
+        this.seed = seed;
+        this.paramsHash = paramsHash;
+        this.hasTree = hasTree;
+        //used to randomize contribution of each coordinate to the cube seed
+        //without these swapping x/y/z coordinates would result in the same seed
+        //so structures would generate symmetrically
+        Random rand = new Random(seed);
+        randXMul = rand.nextLong();
+        randYMul = rand.nextLong();
+        randZMul = rand.nextLong();
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * The seed of the specified sector's structure random.
+     * @param sectorX
+     * @param sectorY
+     * @param sectorZ
+     * @return
+     */
+    public long getSectorSeed(int sectorX, int sectorY, int sectorZ) {
+        long randX = sectorX * randXMul ^ seed;
+        long randY = sectorY * randYMul ^ randX;
+        return sectorZ * randZMul ^ randY;
+    }
+
+    /**
+     * The specified sector's tree.
+     * @param sectorX
+     * @param sectorY
+     * @param sectorZ
+     * @return The tree, or null if the sector doesn't have one.
+     */
+    @Nullable
+    public SectorTree getTree(int sectorX, int sectorY, int sectorZ) {
+        SectorTree tree = sectorTrees.computeIfAbsent(pack(sectorX, sectorY, sectorZ), key -> {
+            long sectorSeed = getSectorSeed(sectorX, sectorY, sectorZ);
+            if (!hasTree.test(new Random(sectorSeed), sectorY)) {
+                return NO_TREE;
+            }
+            return new SectorTree(new TreeKey(seed, paramsHash, sectorX, sectorY, sectorZ), sectorSeed);
+        });
+        return (tree == NO_TREE) ? null : tree;
+    }
+
+    /**
+     * Every tree which might reach cubes in the specified sector.
+     * @param sectorX
+     * @param sectorY
+     * @param sectorZ
+     * @return The trees, in the order they're generated in; don't modify it.
+     */
+    public SectorTree[] getCandidates(int sectorX, int sectorY, int sectorZ) {
+        return cells.computeIfAbsent(pack(sectorX, sectorY, sectorZ), key -> {
+            ArrayList<SectorTree> candidates = new ArrayList<>();
+            // Want the generation to always start in sectors with coords divisible by 3
+            // So for sectorX = 2, it should do X coords (3, 1, 2), in that order.
+            // Determining the offset so that the first coord done is divisible by 3
+            final int xOffset = 4-Math.floorMod(sectorX, 3);
+            final int yOffset = 4-Math.floorMod(sectorY, 3);
+            final int zOffset = 4-Math.floorMod(sectorZ, 3);
+            for (int x = xOffset; x < xOffset+3; x++) {
+                for (int y = yOffset; y < yOffset+3; y++) {
+                    for (int z = zOffset; z < zOffset+3; z++) {
+                        SectorTree tree = getTree(sectorX+Math.floorMod(x, 3)-1, sectorY+Math.floorMod(y, 3)-1,
+                                sectorZ+Math.floorMod(z, 3)-1);
+                        if (tree != null) {
+                            candidates.add(tree);
+                        }
+                    }
+                }
+            }
+            return candidates.isEmpty() ? NO_TREES : candidates.toArray(NO_TREES);
+        });
+    }
+
+    private static long pack(int x, int y, int z) {
+        return ((x & COORD_MASK) << (2*COORD_BITS)) | ((y & COORD_MASK) << COORD_BITS) | (z & COORD_MASK);
+    }
+
+    /**
+     * A sector's tree, whether or not it's been built: its key, how to seed its random, and its bounds once known.
+     */
+    public static class SectorTree {
+        public final TreeKey key;
+        public final long sectorSeed;
+        // In cube coords; null until the tree's been built.
+        private volatile IntegerAABB bounds;
+
+        SectorTree(TreeKey key, long sectorSeed) {
+            this.key = key;
+            this.sectorSeed = sectorSeed;
+        }
+
+        /**
+         * Whether the tree might reach the cube; always true until its bounds are known.
+         * @param pos
+         * @return
+         */
+        public boolean mayReach(CubePos pos) {
+            IntegerAABB knownBounds = bounds;
+            return (knownBounds == null) || knownBounds.isInBoundingBox(pos);
+        }
+
+        public boolean hasBounds() {
+            return bounds != null;
+        }
+
+        /**
+         * Remembers the built tree's bounds. The tree's bounds only ever shrink, so any of them stay valid.
+         * @param bounds The tree's bounds, in cube coords; null for a tree without any features, which is then just
+         *               never skipped.
+         */
+        public void setBounds(@Nullable IntegerAABB bounds) {
+            this.bounds = bounds;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.joekeen03.yggdrasil.world.structure;
+
+import com.joekeen03.yggdrasil.ModYggdrasil;
+import com.joekeen03.yggdrasil.config.YggdrasilConfig;
+import com.joekeen03.yggdrasil.util.IntegerAABBTree;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe cache of built trees, keyed by sector, seed and tree parameters. Each world owns its own cache, so
+ * worlds never contend with each other, and a world's trees can all be released when it unloads.
+ * Lookups of trees which have already been built never lock - they're just a read from a ConcurrentHashMap, and a
+ * read of a completed FutureTask. Building is single-flight per key: the first thread to ask for a missing tree
+ * inserts a FutureTask for it and runs the build itself; any other thread asking for that same tree waits on that
+ * task, while threads asking for other trees carry on unaffected.
+ * Trees can also be prefetched on another executor (see {@link #prefetch}); a thread which then fetches a tree whose
+ * prefetch hasn't started yet just builds it itself, rather than waiting for it to reach the front of the queue.
+ * The cache is bounded by an approximate memory budget (see {@link YggdrasilConfig#treeCacheBudgetMB}); when the
+ * built trees' estimated sizes add up to more than that, the least recently used trees are evicted.
+ */
+public class TreeCache {
+    // Trees lazily grow as their leaf branches are materialized, so the budget also gets rechecked every so often,
+    //  not just when a new tree is added.
+    private static final int EVICTION_CHECK_INTERVAL = 4096;
+
+    private final ConcurrentHashMap<TreeKey, Entry> trees;
+    private final Object evictionLock = new Object();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder prefetches = new LongAdder();
+    private final LongAdder fetchesSinceCheck = new LongAdder();
+
+    public TreeCache(int initialCapacity) {
+        trees = new ConcurrentHashMap<>(initialCapacity);
+    }
+
+    /**
+     * Fetches the tree for the specified key, building it with the provided builder if no other thread has already
+     * built it or started building it.
+     * @param key
+     * @param builder Only called if this thread ends up being the one to build the tree.
+     * @return
+     */
+    public IntegerAABBTree fetch(TreeKey key, Callable<IntegerAABBTree> builder) {
+        Entry entry = trees.get(key);
+        boolean built = false;
+        if (entry == null) {
+            Entry newEntry = new Entry(new FutureTask<>(builder));
+            entry = trees.putIfAbsent(key, newEntry);
+            if (entry == null) { // This thread won the race to insert the task, so it does the actual build.
+                entry = newEntry;
+                misses.increment();
+                entry.task.run();
+                built = true;
+            }
+        }
+        if (!built) {
+            hits.increment();
+            // If this is a prefetch that's still queued, build it now instead of waiting on the queue. A no-op if the
+            //  build has already started or finished.
+            entry.task.run();
+        }
+        entry.lastAccess = System.nanoTime();
+        IntegerAABBTree tree = await(key, entry);
+        fetchesSinceCheck.increment();
+        if (built || fetchesSinceCheck.sum() >= EVICTION_CHECK_INTERVAL) {
+            fetchesSinceCheck.reset();
+            evictIfOverBudget(key);
+        }
+        return tree;
+    }
+
+    /**
+     * Starts building the tree for the specified key on the executor, unless it's already cached or being built.
+     * Never blocks.
+     * @param key
+     * @param builder
+     * @param executor
+     */
+    public void prefetch(TreeKey key, Callable<IntegerAABBTree> builder, Executor executor) {
+        if (trees.containsKey(key)) {
+            return;
+        }
+        Entry newEntry = new Entry(new FutureTask<>(builder));
+        newEntry.lastAccess = System.nanoTime();
+        if (trees.putIfAbsent(key, newEntry) == null) {
+            prefetches.increment();
+            executor.execute(() -> {
+                // A no-op if a fetch already took the build over; if that's still running, it's that fetch's to deal
+                //  with, and the entry has to stay put so other threads wait on it rather than building it again.
+                newEntry.task.run();
+                if (!newEntry.task.isDone()) {
+                    return;
+                }
+                if (newEntry.getIfBuilt() != null) {
+                    evictIfOverBudget(key);
+                } else {
+                    // Failed builds are dropped by whichever thread fetches them, but nothing might; drop it now.
+                    trees.remove(key, newEntry);
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits for the specified entry's tree to be built. Doesn't block if it has already been built.
+     * @param key
+     * @param entry
+     * @return
+     */
+    private IntegerAABBTree await(TreeKey key, Entry entry) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return entry.task.get();
+                } catch (InterruptedException e) {
+                    // World gen can't do anything useful without the tree, so keep waiting, and restore the flag after.
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            // Drop the failed build, so the next request for this tree tries again instead of getting the same error.
+            trees.remove(key, entry);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException("Tree creation failed.", cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used trees until the built trees fit within the memory budget. Never evicts the tree
+     * that was just fetched, or trees which are still being built.
+     * Evicted trees stay alive for as long as a generating thread still holds onto them; they just get rebuilt the
+     * next time they're fetched.
+     * @param protectedKey
+     */
+    private void evictIfOverBudget(TreeKey protectedKey) {
+        long budget = YggdrasilConfig.treeCacheBudgetMB*1024L*1024L;
+        synchronized (evictionLock) {
+            ArrayList<Map.Entry<TreeKey, Entry>> candidates = new ArrayList<>(trees.size());
+            long totalBytes = 0;
+            for (Map.Entry<TreeKey, Entry> mapEntry : trees.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                IntegerAABBTree tree = entry.getIfBuilt();
+                if (tree != null) {
+                    entry.weight = tree.estimateRetainedBytes();
+                    totalBytes += entry.weight;
+                    if (!mapEntry.getKey().equals(protectedKey)) {
+                        candidates.add(mapEntry);
+                    }
+                }
+            }
+            if (totalBytes <= budget) {
+                return;
+            }
+            candidates.sort((a, b) -> Long.compare(a.getValue().lastAccess, b.getValue().lastAccess));
+            for (Map.Entry<TreeKey, Entry> candidate : candidates) {
+                if (totalBytes <= budget) {
+                    break;
+                }
+                if (trees.remove(candidate.getKey(), candidate.getValue())) {
+                    totalBytes -= candidate.getValue().weight;
+                    evictions.increment();
+                }
+            }
+            ModYggdrasil.info("Tree cache over budget; evicted down to "+(totalBytes/(1024*1024))+"MB. "+getStats());
+        }
+    }
+
+    /**
+     * Drops every cached tree. Builds which are still running finish for the threads waiting on them, but aren't
+     * kept.
+     */
+    public void clear() {
+        trees.clear();
+    }
+
+    public int size() {
+        return trees.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getPrefetches() {
+        return prefetches.sum();
+    }
+
+    public String getStats() {
+        return "Trees: "+size()+", hits: "+getHits()+", misses: "+getMisses()+", evictions: "+getEvictions()
+                +", prefetches: "+getPrefetches();
+    }
+
+    private static class Entry {
+        final FutureTask<IntegerAABBTree> task;
+        volatile long lastAccess;
+        // Only touched while holding the eviction lock.
+        long weight;
+
+        Entry(FutureTask<IntegerAABBTree> task) {
+            this.task = task;
+        }
+
+        /**
+         * Returns the tree if it has been successfully built, or null otherwise. Never blocks.
+         * @return
+         */
+        IntegerAABBTree getIfBuilt() {
+            if (!task.isDone()) {
+                return null;
+            }
+            try {
+                return task.get();
+            } catch (InterruptedException | ExecutionException e) {
+                return null;
+            }
+        }
+    }
+}
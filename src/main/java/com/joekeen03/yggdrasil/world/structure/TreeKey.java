@@ -0,0 +1,42 @@
+package com.joekeen03.yggdrasil.world.structure;
+
+/**
+ * Identifies a single mega-tree: which sector it's in, plus the world seed and tree parameters it was grown from, so
+ * trees built for one seed or parameter set are never handed out for another.
+ */
+public final class TreeKey {
+    public final long seed, paramsHash;
+    public final int sectorX, sectorY, sectorZ;
+
+    public TreeKey(long seed, long paramsHash, int sectorX, int sectorY, int sectorZ) {
+        this.seed = seed;
+        this.paramsHash = paramsHash;
+        this.sectorX = sectorX;
+        this.sectorY = sectorY;
+        this.sectorZ = sectorZ;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TreeKey that = (TreeKey) o;
+        return seed == that.seed && paramsHash == that.paramsHash
+                && sectorX == that.sectorX && sectorY == that.sectorY && sectorZ == that.sectorZ;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Long.hashCode(seed);
+        result = 31 * result + Long.hashCode(paramsHash);
+        result = 31 * result + sectorX;
+        result = 31 * result + sectorY;
+        result = 31 * result + sectorZ;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "sector "+sectorX+","+sectorY+","+sectorZ;
+    }
+}
@@ -1,32 +1,58 @@
 package com.joekeen03.yggdrasil.world.structure;
 
 import com.joekeen03.yggdrasil.ModYggdrasil;
+import com.joekeen03.yggdrasil.config.YggdrasilConfig;
 import com.joekeen03.yggdrasil.util.*;
 import com.joekeen03.yggdrasil.world.structure.tree.*;
+import com.joekeen03.yggdrasil.world.structure.generationFeatures.CubeVoxelBuffer;
 import com.joekeen03.yggdrasil.world.structure.generationFeatures.DoubleTruncatedCone;
 import com.joekeen03.yggdrasil.world.structure.generationFeatures.GenerationFeature;
+import com.joekeen03.yggdrasil.world.structure.generationFeatures.LazyBranch;
 import com.joekeen03.yggdrasil.world.structure.generationFeatures.LeafBranch;
 import com.joekeen03.yggdrasil.world.structure.generationFeatures.MNTruncatedCone;
 import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
 import io.github.opencubicchunks.cubicchunks.api.world.ICube;
 import io.github.opencubicchunks.cubicchunks.api.worldgen.CubePrimer;
 import io.github.opencubicchunks.cubicchunks.api.worldgen.structure.ICubicStructureGenerator;
-import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import net.minecraft.util.math.Vec3d;
 import net.minecraft.world.World;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 public class TreeMegaStructureGenerator implements ICubicStructureGenerator {
     private static final int TREE_RATE = 5; // On average, 1 out of this many sectors will spawn a tree.
-    private static final long KEY_MASK = (1<<(22-1))-1;
     private static final int treeWidth=4096;
     private static final int treeHeight=4096;
     private static final int xzSectorSize = treeWidth/2;
     private static final int ySectorSize = treeHeight/2;
-    private static final Long2ObjectOpenHashMap<IntegerAABBTree> treeCache = new Long2ObjectOpenHashMap<>(10);
     public static final boolean TREE_DEBUG = true;
+    private final TreeCache treeCache;
+    private final TreeStore treeStore;
+    // Only ever for one world seed, but set up the first time it's needed, since that's when the seed's known.
+    private volatile SectorTreeIndex sectorIndex;
+    // Each world gen thread reuses its own array for the features found in the cube it's generating.
+    private final ThreadLocal<GenerationFeature[]> foundFeatures =
+            ThreadLocal.withInitial(() -> new GenerationFeature[64]);
+    // ...and its own buffer, which every tree feature in the cube is written into before any blocks are placed.
+    private final ThreadLocal<CubeVoxelBuffer> voxelBuffers = ThreadLocal.withInitial(CubeVoxelBuffer::new);
+    // ...and its own arrays for the trees reaching the cube, and the cube's occupancy for each; at most one tree per
+    //  sector around the cube's.
+    private final ThreadLocal<IntegerAABBTree[]> reachingTrees = ThreadLocal.withInitial(() -> new IntegerAABBTree[27]);
+    private final ThreadLocal<byte[]> reachingOccupancies = ThreadLocal.withInitial(() -> new byte[27]);
+
+    /**
+     * @param treeCache Cache for the trees this generates; should belong to the world being generated.
+     * @param treeStore Where built trees are saved to, and loaded from; should also belong to that world.
+     */
+    public TreeMegaStructureGenerator(TreeCache treeCache, TreeStore treeStore) {
+        this.treeCache = treeCache;
+        this.treeStore = treeStore;
+    }
 
     @Override
     public void generate(World world, CubePrimer cube, CubePos cubePos) {
@@ -47,56 +73,53 @@ public class TreeMegaStructureGenerator implements ICubicStructureGenerator {
         final int cubeSectorZ = Math.floorDiv(cubePos.getZ(), xzSectorSize/ICube.SIZE);
 
 
-        Random rand = new Random(world.getSeed());
-        //used to randomize contribution of each coordinate to the cube seed
-        //without these swapping x/y/z coordinates would result in the same seed
-        //so structures would generate symmetrically
-        long randXMul = rand.nextLong();
-        long randYMul = rand.nextLong();
-        long randZMul = rand.nextLong();
-
-        long randSeed = world.getSeed();
-        // Want the generation to always start in sectors with coords divisible by 3
-        // So for cubeSectorX = 2, it should do X coords (3, 1, 2), in that order.
-        // Determining the offset so that the first coord done is divisible by 3
-        final int xOffset = 4-Math.floorMod(cubeSectorX, 3);
-        final int yOffset = 4-Math.floorMod(cubeSectorY, 3);
-        final int zOffset = 4-Math.floorMod(cubeSectorZ, 3);
-        for (int x = xOffset; x < xOffset+3; x++) {
-            int sectorX = cubeSectorX+Math.floorMod(x, 3)-1;
-            long randX = sectorX * randXMul ^ randSeed;
-            for (int y = yOffset; y < yOffset+3; y++) {
-                int sectorY = cubeSectorY+Math.floorMod(y, 3)-1;
-                long randY = sectorY * randYMul ^ randX;
-                for (int z = zOffset; z < zOffset+3; z++) {
-                    int sectorZ = cubeSectorZ+Math.floorMod(z, 3)-1;
-                    long randZ = sectorZ * randZMul ^ randY;
-                    rand.setSeed(randZ);
-                    this.generate(world, rand, cube, sectorX, sectorY, sectorZ, cubePos);
-                }
+        SectorTreeIndex sectorIndex = getSectorIndex(world.getSeed());
+        IntegerAABBTree[] trees = reachingTrees.get();
+        byte[] occupancies = reachingOccupancies.get();
+        int treesReaching = 0;
+        for (SectorTreeIndex.SectorTree candidate : sectorIndex.getCandidates(cubeSectorX, cubeSectorY, cubeSectorZ)) {
+            // Trees already built are only fetched for cubes within their bounds.
+            if (!candidate.mayReach(cubePos)) {
+                continue;
+            }
+            IntegerAABBTree tree = fetchTree(candidate);
+            // Most cubes near a tree are either in the open air, or deep within its trunk; neither needs the tree
+            //  queried.
+            byte occupancy = tree.getOccupancy().get(cubePos);
+            if (occupancy != CubeOccupancy.EMPTY) {
+                trees[treesReaching] = tree;
+                occupancies[treesReaching] = occupancy;
+                treesReaching++;
             }
         }
-    }
-
-    protected void generate(World world, Random structureRandom, CubePrimer cube,
-                            int sectorX, int sectorY, int sectorZ,
-                            CubePos generatedCubePos) {
-
-        if (!TREE_DEBUG) {
-            if (structureRandom.nextInt(TREE_RATE) != 0) {
-                return;
+        if (treesReaching == 0) {
+            return;
+        }
+        // If only one tree reaches the cube, what it places there doesn't depend on anything else; if it fills the
+        //  whole cube with wood, or has been baked, the blocks can just be placed.
+        boolean placed = false;
+        if (treesReaching == 1 && !Constants.DEBUG) {
+            BakedTree baked = trees[0].getBaked();
+            if (occupancies[0] != CubeOccupancy.PARTIAL) {
+                CubeVoxelBuffer.fillCube(cube, occupancies[0]);
+                placed = true;
+            } else if (baked != null) {
+                baked.place(cubePos, cube);
+                placed = true;
             }
         }
-
-        // FIXME - for proper world gen, this might need to know where the ground is in its "origin" chunk (for
-        //  vertical position), even if that chunk is not yet generated.
-
-        if (sectorY != 0) { // Don't generate anywhere except starting at ground level.
-           return;
+        if (!placed) {
+            CubeVoxelBuffer buffer = voxelBuffers.get();
+            buffer.reset(cubePos);
+            for (int i = 0; i < treesReaching; i++) {
+                write(trees[i], occupancies[i], buffer, cubePos);
+            }
+            if (!buffer.isEmpty()) {
+                buffer.resolve(cube);
+            }
         }
-        IntegerAABBTree tree = fetchTree(structureRandom, sectorX, sectorY, sectorZ);
-        tree.forEachLeaf(generatedCubePos, feature -> feature.generate(cube, generatedCubePos));
-        //ModYggdrasil.info("Tree generation finished for cube at "+generatedCubePos);
+        // Don't keep trees alive from the array, in case they get evicted.
+        Arrays.fill(trees, 0, treesReaching, null);
 
         // TODO - maybe a simulation type algorithm for generating trees, where it roughly simluates the tree's growth?
 
@@ -128,47 +151,139 @@ public class TreeMegaStructureGenerator implements ICubicStructureGenerator {
         //  will likely be impacted by the branches above it, but not the other way around.
     }
 
-    public static IntegerAABBTree fetchTree(Random structureRandom, int sectorX, int sectorY, int sectorZ) {
-        // TODO would it be faster to instead always fetch the tree, and instead have a "null" tree for sectors that
-        //  shouldn't have one in them?
-        long key = ((KEY_MASK & sectorX) << 44) | ((KEY_MASK & sectorY) << 22) | (KEY_MASK & sectorZ);
-        synchronized (treeCache) {
-            // Manual computeIfAbsent, since Long2ObjectHashMap doesn't have one which takes a LongFunction.
-            if (!treeCache.containsKey(key)) {
-                ModYggdrasil.info("Creating tree at sector "+sectorX+","+sectorY+","+sectorZ);
-                treeCache.put(key, createTree(structureRandom,
-                        sectorX, sectorY, sectorZ));
+    /**
+     * Writes what the tree places in the cube into the buffer.
+     * @param tree
+     * @param occupancy The cube's {@link CubeOccupancy} for the tree; not EMPTY.
+     * @param buffer
+     * @param generatedCubePos
+     */
+    private void write(IntegerAABBTree tree, byte occupancy, CubeVoxelBuffer buffer, CubePos generatedCubePos) {
+        if (occupancy != CubeOccupancy.PARTIAL && !Constants.DEBUG) {
+            // Nothing else in this tree can change what the filling feature puts there.
+            buffer.fillSolid(occupancy);
+            return;
+        }
+        // Only use the index if the tree was built with it, rather than stopping to build it now.
+        CubeFeatureIndex index = YggdrasilConfig.cubeFeatureIndex ? tree.getCubeIndexIfBuilt() : null;
+        GenerationFeature[] found = foundFeatures.get();
+        int foundCount = (index != null) ? index.query(generatedCubePos, found) : tree.query(generatedCubePos, found);
+        if (foundCount > found.length) {
+            found = new GenerationFeature[Integer.highestOneBit(foundCount)*2];
+            foundFeatures.set(found);
+            // Lazy branches being built meanwhile can only make this find fewer.
+            foundCount = (index != null) ? index.query(generatedCubePos, found) : tree.query(generatedCubePos, found);
+        }
+        for (int i = 0; i < foundCount; i++) {
+            found[i].generate(buffer, generatedCubePos);
+        }
+        // Don't keep features alive from the array, in case their tree gets evicted.
+        Arrays.fill(found, 0, foundCount, null);
+    }
+
+    /**
+     * Returns whether the sector with the specified structure random has a tree in it. Consumes from the random, so
+     * it has to be called before the random is used to create the tree.
+     * @param structureRandom
+     * @param sectorY
+     * @return
+     */
+    private static boolean hasTree(Random structureRandom, int sectorY) {
+        if (!TREE_DEBUG) {
+            if (structureRandom.nextInt(TREE_RATE) != 0) {
+                return false;
+            }
+        }
+
+        // FIXME - for proper world gen, this might need to know where the ground is in its "origin" chunk (for
+        //  vertical position), even if that chunk is not yet generated.
+
+        return sectorY == 0; // Don't generate anywhere except starting at ground level.
+    }
+
+    /**
+     * Returns the sector's tree, building it if it isn't cached, and remembers its bounds.
+     * @param sectorTree
+     * @return
+     */
+    public IntegerAABBTree fetchTree(SectorTreeIndex.SectorTree sectorTree) {
+        // Only threads which need this specific tree wait while it's being created; everyone else just reads the
+        //  cache.
+        IntegerAABBTree tree = treeCache.fetch(sectorTree.key, treeBuilder(sectorTree));
+        if (!sectorTree.hasBounds()) {
+            sectorTree.setBounds(tree.getBounds());
+        }
+        return tree;
+    }
+
+    /**
+     * The index of which sectors have trees, for the specified world seed; the same one every time, unless the seed
+     * changes.
+     * @param seed World seed
+     * @return
+     */
+    private SectorTreeIndex getSectorIndex(long seed) {
+        SectorTreeIndex index = sectorIndex;
+        if (index == null || index.getSeed() != seed) {
+            index = new SectorTreeIndex(seed, treeParams.paramsHash, TreeMegaStructureGenerator::hasTree);
+            sectorIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Starts building the trees of the specified sector and all sectors adjacent to it on the executor, unless
+     * they're already built or being built. Those are the trees generating any cube in that sector needs.
+     * @param seed World seed
+     * @param sectorX
+     * @param sectorY
+     * @param sectorZ
+     * @param executor
+     */
+    public void prebuildTreesAround(long seed, int sectorX, int sectorY, int sectorZ, Executor executor) {
+        for (int x = sectorX-1; x <= sectorX+1; x++) {
+            for (int y = sectorY-1; y <= sectorY+1; y++) {
+                for (int z = sectorZ-1; z <= sectorZ+1; z++) {
+                    SectorTreeIndex.SectorTree sectorTree = getSectorIndex(seed).getTree(x, y, z);
+                    if (sectorTree != null) {
+                        treeCache.prefetch(sectorTree.key, treeBuilder(sectorTree), executor);
+                    }
+                }
             }
-            return treeCache.get(key);
         }
-        // TODO Maybe replace this with a more streamlined version - one that only locks the variable if you need to
-        //  generate a tree from scratch?
-        //  Might be something like: if tree doesn't exist, lock buffer; when entering buffer, check if main cache
-        //      now has necessary tree (if another thread created it); if so, return that; otherwise, clone the main
-        //      cache into the buffer, create the tree and add it to the buffer, copy the buffer back to the main cache
-        //      variable, and return the tree.
-        //      Only concern with this is that the other threads might somehow not see the update to the main buffer?
-        //      I saw something regarding threads caching the variable, and maybe not updating their copy of it right
-        //      away? In which case, I would need to use volatile, to ensure that when a thread enters the sync-block,
-        //      it sees the most recent update to the main cache - and knows for sure whether or not the tree's been
-        //      created. But, volatile is slow?
-        //      Maybe, maintain a third map, hasCreated, which stores whether or not a tree has definitely been created
-        //      for a given structure pos, and make this volatile? Then, when entering the sync-block, it checks this
-        //      map instead - and if the tree hasn't been created, creates the tree and updates the creation-map.
-        //      But, that doesn't help if there's no way to force a cache update...maybe the hasCreated is a volatile
-        //      copy of the main cache?
-        //      Or, what if you just maintain the buffer as the most up-to-date copy of the main tree? From what I
-        //      understand, if you synchronize on a variable, that variable should be updated in main memory after you
-        //      exit the synchronized block - and it should read the most recent copy of it from main memory upon
-        //      entering the sync block. So, synchronize on the buffer map; upon entering, check if the buffer has the
-        //      tree; if it doesn't, create it, and add it to the buffer, and clone the buffer to the main map.
-        //      But, is the map guaranteed to be internally updated w/in a thread? Synchronizing on the buffer variable
-        //      only guarantees the variable - the object reference - is kept up to date - not the actual object.
-        //      Move the buffer to the main map, and clone the buffer back ? Forcing the references to be updated?
-        //      I think that would work? This guarantees that when a given thread first looks at the buffer, it will
-        //      always have the most up to date version of it? Because it's a freshly-cloned object - it shouldn't exist
-        //      in a thread's cache until it first accesses it. Though, could a thread hypothetically load the new
-        //      buffer object while it is being created? Then not update it when it should?
+    }
+
+    private Callable<IntegerAABBTree> treeBuilder(SectorTreeIndex.SectorTree sectorTree) {
+        TreeKey key = sectorTree.key;
+        return () -> {
+            IntegerAABBTree tree = treeStore.load(key, treeParams);
+            if (tree == null) {
+                ModYggdrasil.info("Creating tree at sector "+key.sectorX+","+key.sectorY+","+key.sectorZ);
+                // The sector's structure random, as it was after checking the sector has a tree.
+                Random structureRandom = new Random(sectorTree.sectorSeed);
+                hasTree(structureRandom, key.sectorY);
+                tree = createTree(structureRandom, key.sectorX, key.sectorY, key.sectorZ);
+                treeStore.save(key, tree);
+            }
+            if (YggdrasilConfig.cubeFeatureIndex) {
+                // Built along with the tree, so no cube being generated ever has to wait for it.
+                tree.getCubeIndex();
+            }
+            if (YggdrasilConfig.bakeTrees && tree.getBaked() == null) {
+                // Stored again, so it's loaded baked next time.
+                tree.bake();
+                treeStore.save(key, tree);
+            }
+            return tree;
+        };
+    }
+
+    public static int blockToSectorXZ(double blockCoord) {
+        return Math.floorDiv((int) Math.floor(blockCoord), xzSectorSize);
+    }
+
+    public static int blockToSectorY(double blockCoord) {
+        return Math.floorDiv((int) Math.floor(blockCoord), ySectorSize);
     }
 
         /*
@@ -239,16 +354,23 @@ public class TreeMegaStructureGenerator implements ICubicStructureGenerator {
         StemVec3d zUnitOrigin = new StemVec3d(0, 0, 1);
 
         TreeModel model = new TreeModel(treeRandom, trunkOrigin, zUnitOrigin, treeParams);
-        ArrayList<GenerationFeature> newFeatures = createGenerationFeatures(model);
+        ArrayList<GenerationFeature> newFeatures = createGenerationFeatures(model.trunk, StemVec3d.ZERO);
         IntegerAABBTree newTree = new IntegerAABBTree(newFeatures.toArray(new GenerationFeature[0]));
-        ModYggdrasil.info("Tree for sector "+sectorX+","+sectorY+","+sectorZ+" created, with origin at "+trunkOrigin.toMCVector());
+        ModYggdrasil.info("Tree for sector "+sectorX+","+sectorY+","+sectorZ+" created, with origin at "+trunkOrigin.toMCVector()
+                +"; "+newTree.getFeatureCount()+" features, BVH depth "+newTree.getDepth()+".");
         return newTree;
     }
 
-    private static ArrayList<GenerationFeature> createGenerationFeatures(TreeModel model) {
-        ArrayList<GenerationFeature> generationFeatures = new ArrayList<>(3000);
+    /**
+     * Creates the generation features for a branch, and everything growing off of it.
+     * @param branch
+     * @param adjustment Offset for the branch's origin, carried over from the segments it grows out of.
+     * @return
+     */
+    public static ArrayList<GenerationFeature> createGenerationFeatures(TreeBranch branch, StemVec3d adjustment) {
+        ArrayList<GenerationFeature> generationFeatures = new ArrayList<>();
         // FIXME Verify that the first segment is a TreeSegmentGenerated?
-        processBranch(model.trunk, StemVec3d.ZERO, generationFeatures);
+        processBranch(branch, adjustment, generationFeatures);
         return generationFeatures;
     }
 
@@ -294,6 +416,9 @@ public class TreeMegaStructureGenerator implements ICubicStructureGenerator {
         } else if (segment instanceof TreeSegmentNode) {
             LeafBranch feature = new LeafBranch((TreeSegmentNode) segment, adjustment);
             generationFeatures.add(feature);
+        } else if (segment instanceof TreeBranchNode) {
+            LazyBranch feature = new LazyBranch((TreeBranchNode) segment, adjustment);
+            generationFeatures.add(feature);
         }
     }
 
@@ -0,0 +1,136 @@
+package com.joekeen03.yggdrasil.world.structure;
+
+import com.joekeen03.yggdrasil.ModYggdrasil;
+import com.joekeen03.yggdrasil.config.YggdrasilConfig;
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.util.math.Vec3i;
+import net.minecraft.world.World;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds trees in the background, ahead of when world gen needs them, so the first cube generated in a new sector
+ * doesn't stall for a whole tree build.
+ * Periodically looks at where each player is and where they're heading, plus which sectors cubes have recently been
+ * requested near, and prebuilds the trees those sectors' cubes will need on a dedicated executor. Anything world gen
+ * asks for before its prebuild has started is just built by the world gen thread, as before.
+ */
+public class TreePrebuilder {
+    private static final int TICK_INTERVAL = 20;
+    // A requested cube this close to the edge of its sector also prebuilds for the sector across that edge.
+    private static final int CUBE_LOOKAHEAD_BLOCKS = 512;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final World world;
+    private final TreeMegaStructureGenerator generator;
+    private final ThreadPoolExecutor executor;
+    // Sectors cubes were requested near since the last check.
+    private final Set<Vec3i> requestedSectors = ConcurrentHashMap.newKeySet();
+    private int ticksSinceCheck = 0;
+    // Bumped each time requestedSectors is drained, so threads record their sectors again after.
+    private volatile int checkCount = 0;
+    // Per thread, the sectors it last recorded (x low and high, y, z low and high), and the check count then.
+    private final ThreadLocal<int[]> lastRecorded = ThreadLocal.withInitial(() -> new int[] {0, 0, 0, 0, 0, -1});
+
+    public TreePrebuilder(World world, TreeMegaStructureGenerator generator, int threads) {
+        this.world = world;
+        this.generator = generator;
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "Yggdrasil Tree Prebuilder #"+threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            // World gen and the server tick come first.
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        };
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), threadFactory);
+    }
+
+    /**
+     * Records that the specified cube is being generated. Safe to call from any thread.
+     * Runs for every cube generated, nearly all of them in the same few sectors as the last, so it only records
+     *  anything when the sectors differ from what this thread last recorded since the last check.
+     * @param cubePos
+     */
+    public void onCubeRequested(CubePos cubePos) {
+        int x = cubePos.getMinBlockX();
+        int z = cubePos.getMinBlockZ();
+        int sectorY = TreeMegaStructureGenerator.blockToSectorY(cubePos.getMinBlockY());
+        // Sectors are wider than twice the lookahead, so the cube's own sector is one of these on each axis; the
+        //  other's the sector across whichever edge the cube is near, if any.
+        int lowX = TreeMegaStructureGenerator.blockToSectorXZ(x-CUBE_LOOKAHEAD_BLOCKS);
+        int highX = TreeMegaStructureGenerator.blockToSectorXZ(x+CUBE_LOOKAHEAD_BLOCKS);
+        int lowZ = TreeMegaStructureGenerator.blockToSectorXZ(z-CUBE_LOOKAHEAD_BLOCKS);
+        int highZ = TreeMegaStructureGenerator.blockToSectorXZ(z+CUBE_LOOKAHEAD_BLOCKS);
+        int[] last = lastRecorded.get();
+        int checks = checkCount;
+        if ((last[0] == lowX) && (last[1] == highX) && (last[2] == sectorY) && (last[3] == lowZ)
+                && (last[4] == highZ) && (last[5] == checks)) {
+            return;
+        }
+        last[0] = lowX;
+        last[1] = highX;
+        last[2] = sectorY;
+        last[3] = lowZ;
+        last[4] = highZ;
+        last[5] = checks;
+        requestedSectors.add(new Vec3i(lowX, sectorY, lowZ));
+        if (highX != lowX) {
+            requestedSectors.add(new Vec3i(highX, sectorY, lowZ));
+        }
+        if (highZ != lowZ) {
+            requestedSectors.add(new Vec3i(lowX, sectorY, highZ));
+            if (highX != lowX) {
+                requestedSectors.add(new Vec3i(highX, sectorY, highZ));
+            }
+        }
+    }
+
+    /**
+     * Called each server tick for this prebuilder's world.
+     */
+    public void onTick() {
+        if (++ticksSinceCheck < TICK_INTERVAL) {
+            return;
+        }
+        ticksSinceCheck = 0;
+        long seed = world.getSeed();
+        double lookaheadTicks = YggdrasilConfig.prebuildLookaheadSeconds*20.0;
+        for (EntityPlayer player : world.playerEntities) {
+            prebuildAround(seed, player.posX, player.posY, player.posZ);
+            prebuildAround(seed, player.posX+player.motionX*lookaheadTicks, player.posY+player.motionY*lookaheadTicks,
+                    player.posZ+player.motionZ*lookaheadTicks);
+        }
+        checkCount++;
+        Iterator<Vec3i> iterator = requestedSectors.iterator();
+        while (iterator.hasNext()) {
+            Vec3i sector = iterator.next();
+            iterator.remove();
+            generator.prebuildTreesAround(seed, sector.getX(), sector.getY(), sector.getZ(), executor);
+        }
+    }
+
+    private void prebuildAround(long seed, double x, double y, double z) {
+        generator.prebuildTreesAround(seed, TreeMegaStructureGenerator.blockToSectorXZ(x),
+                TreeMegaStructureGenerator.blockToSectorY(y), TreeMegaStructureGenerator.blockToSectorXZ(z), executor);
+    }
+
+    /**
+     * Stops the executor. Queued builds are dropped; builds already running are left to finish.
+     */
+    public void shutdown() {
+        // Not shutdownNow(), as interrupting a build could stop it from saving the tree it just built.
+        executor.shutdown();
+        int dropped = executor.getQueue().size();
+        executor.getQueue().clear();
+        ModYggdrasil.info("Tree prebuilder stopped; dropped "+dropped+" queued builds.");
+    }
+}
@@ -0,0 +1,369 @@
+package com.joekeen03.yggdrasil.world.structure;
+
+import com.joekeen03.yggdrasil.ModYggdrasil;
+import com.joekeen03.yggdrasil.config.YggdrasilConfig;
+import com.joekeen03.yggdrasil.util.*;
+import com.joekeen03.yggdrasil.world.structure.generationFeatures.DoubleTruncatedCone;
+import com.joekeen03.yggdrasil.world.structure.generationFeatures.GenerationFeature;
+import com.joekeen03.yggdrasil.world.structure.generationFeatures.LazyBranch;
+import com.joekeen03.yggdrasil.world.structure.generationFeatures.LeafBranch;
+import com.joekeen03.yggdrasil.world.structure.generationFeatures.MNTruncatedCone;
+import com.joekeen03.yggdrasil.world.structure.tree.*;
+import net.minecraft.world.World;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Random;
+
+/**
+ * Stores built trees in the world's save folder, so they can be loaded after a restart instead of regrown from the
+ * tree model. Each tree gets its own file, named after its sector and tree parameters hash; the header also records
+ * the seed, so files left over from a different seed or parameter set are never loaded.
+ * File layout (big-endian):
+ *  header - magic, format version, seed, params hash, sector coords
+ *  tables of the TreeCreationParams, SegSplitErrors and BranchCreationParams the leaf and lazy branches were
+ *      created with
+ *  features - type tag, then each feature's construction values
+ *  BVH - the flattened node array, as is (see IntegerAABBTree)
+ *  baked tree - whether the tree's been baked, then if it has, the BakedTree as it writes itself. Its block states are
+ *      stored by id, which only stays the same within the world the ids were assigned in - fine, since these files
+ *      are never loaded in another world.
+ * Files are written to a temporary file then moved into place, so a crash mid-write never leaves a truncated tree,
+ * and read whole into memory - not memory-mapped, since a live mapping stops the file being replaced on some platforms
+ * (Windows), and a tree loaded unbaked is stored again once it's been baked.
+ */
+public class TreeStore {
+    private static final int MAGIC = 0x59474754; // "YGGT"
+    // Bump whenever the layout, or the meaning of any stored value, changes; older files are then just rebuilt.
+    private static final int FORMAT_VERSION = 5;
+
+    private static final byte FEATURE_DOUBLE_TRUNCATED_CONE = 0;
+    private static final byte FEATURE_MN_TRUNCATED_CONE = 1;
+    private static final byte FEATURE_LEAF_BRANCH = 2;
+    private static final byte FEATURE_LAZY_BRANCH = 3;
+    // How many bytes each stored value takes up (at least, for features), so stored lengths can be checked against
+    //  what's left of the file before anything's allocated for them.
+    private static final int TREE_CREATION_PARAMS_BYTES = 104;
+    private static final int SPLIT_ERROR_BYTES = 12;
+    private static final int BRANCH_CREATION_PARAMS_BYTES = 40;
+    private static final int MIN_FEATURE_BYTES = 1;
+
+    private final Path directory;
+
+    public TreeStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Creates a store in the world's save folder (each dimension's folder, for dimensions other than the overworld).
+     * @param world
+     * @return
+     */
+    public static TreeStore forWorld(World world) {
+        File worldDirectory = world.getSaveHandler().getWorldDirectory();
+        String dimensionFolder = world.provider.getSaveFolder();
+        if (dimensionFolder != null) {
+            worldDirectory = new File(worldDirectory, dimensionFolder);
+        }
+        return new TreeStore(worldDirectory.toPath().resolve(ModYggdrasil.MODID).resolve("trees"));
+    }
+
+    private Path getPath(TreeKey key) {
+        return directory.resolve(String.format("tree.%d.%d.%d.%016x.bin",
+                key.sectorX, key.sectorY, key.sectorZ, key.paramsHash));
+    }
+
+    /**
+     * Loads the stored tree for the specified key, if there is one.
+     * @param key
+     * @param treeParams Parameters the tree was grown from; must be the ones key's params hash was computed from.
+     * @return The loaded tree, or null if it isn't stored, or couldn't be read.
+     */
+    @Nullable
+    public IntegerAABBTree load(TreeKey key, TreeTypeParams treeParams) {
+        if (!YggdrasilConfig.persistTrees) {
+            return null;
+        }
+        Path path = getPath(key);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try {
+            if (Files.size(path) > Integer.MAX_VALUE) {
+                throw new InvalidValueException("Stored tree file is too big.");
+            }
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION || in.getLong() != key.seed
+                    || in.getLong() != key.paramsHash || in.getInt() != key.sectorX || in.getInt() != key.sectorY
+                    || in.getInt() != key.sectorZ) {
+                ModYggdrasil.info("Stored tree for "+key+" is outdated or for another world; rebuilding it.");
+                return null;
+            }
+            IntegerAABBTree tree = read(in, treeParams);
+            ModYggdrasil.info("Loaded stored tree for "+key+".");
+            return tree;
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException | InvalidValueException e) {
+            ModYggdrasil.warn("Failed to load stored tree for "+key+", rebuilding it: "+e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the tree.
+     * Failures are logged, not thrown - the tree just gets rebuilt next time.
+     * @param key
+     * @param tree
+     */
+    public void save(TreeKey key, IntegerAABBTree tree) {
+        if (!YggdrasilConfig.persistTrees) {
+            return;
+        }
+        Path path = getPath(key);
+        Path tempPath = null;
+        try {
+            Files.createDirectories(directory);
+            tempPath = Files.createTempFile(directory, "tree", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(key.seed);
+                out.writeLong(key.paramsHash);
+                out.writeInt(key.sectorX);
+                out.writeInt(key.sectorY);
+                out.writeInt(key.sectorZ);
+                write(out, tree);
+            }
+            try {
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            ModYggdrasil.warn("Failed to store tree for "+key+": "+e);
+            if (tempPath != null) {
+                try {
+                    Files.deleteIfExists(tempPath);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static void write(DataOutputStream out, IntegerAABBTree tree) throws IOException {
+        // Leaf branches share their creation params (and through them, split errors), so those are written once each,
+        //  and referred to by index.
+        IdentityHashMap<TreeModel.TreeCreationParams, Integer> treeCreationIndices = new IdentityHashMap<>();
+        ArrayList<TreeModel.TreeCreationParams> treeCreationParams = new ArrayList<>();
+        IdentityHashMap<SegSplitError, Integer> splitErrorIndices = new IdentityHashMap<>();
+        ArrayList<SegSplitError> splitErrors = new ArrayList<>();
+        ArrayList<Integer> splitErrorLevels = new ArrayList<>();
+        IdentityHashMap<TreeBranch.BranchCreationParams, Integer> branchCreationIndices = new IdentityHashMap<>();
+        ArrayList<TreeBranch.BranchCreationParams> branchCreationParams = new ArrayList<>();
+        for (int i = 0; i < tree.getFeatureCount(); i++) {
+            GenerationFeature feature = tree.getFeature(i);
+            if (feature instanceof LeafBranch) {
+                TreeSegmentNode node = ((LeafBranch) feature).getBranchNode();
+                if (!treeCreationIndices.containsKey(node.treeCreationParams)) {
+                    treeCreationIndices.put(node.treeCreationParams, treeCreationParams.size());
+                    treeCreationParams.add(node.treeCreationParams);
+                }
+                TreeBranch.BranchCreationParams branchParams = node.branchCreationParams;
+                if (!branchCreationIndices.containsKey(branchParams)) {
+                    branchCreationIndices.put(branchParams, branchCreationParams.size());
+                    branchCreationParams.add(branchParams);
+                }
+                if (!splitErrorIndices.containsKey(branchParams.segSplitError)) {
+                    splitErrorIndices.put(branchParams.segSplitError, splitErrors.size());
+                    splitErrors.add(branchParams.segSplitError);
+                    splitErrorLevels.add(branchParams.level);
+                }
+            } else if (feature instanceof LazyBranch) {
+                TreeBranchNode node = ((LazyBranch) feature).getBranchNode();
+                if (!treeCreationIndices.containsKey(node.treeCreationParams)) {
+                    treeCreationIndices.put(node.treeCreationParams, treeCreationParams.size());
+                    treeCreationParams.add(node.treeCreationParams);
+                }
+            }
+        }
+
+        out.writeInt(treeCreationParams.size());
+        for (TreeModel.TreeCreationParams params : treeCreationParams) {
+            out.writeLong(params.seed);
+            Helpers.writeStemVec3d(out, params.xUnitTrunkBase);
+            Helpers.writeStemVec3d(out, params.yUnitTrunkBase);
+            Helpers.writeStemVec3d(out, params.zUnitTrunkBase);
+            out.writeDouble(params.lengthBase);
+            out.writeInt(params.firstCutoffLevel);
+            out.writeDouble(params.cutoffRadius);
+            out.writeInt(params.firstLazyLevel);
+        }
+        out.writeInt(splitErrors.size());
+        for (int i = 0; i < splitErrors.size(); i++) {
+            out.writeInt(splitErrorLevels.get(i));
+            out.writeDouble(splitErrors.get(i).getSegSplitsError());
+        }
+        out.writeInt(branchCreationParams.size());
+        for (TreeBranch.BranchCreationParams params : branchCreationParams) {
+            out.writeDouble(params.stemRadius);
+            out.writeDouble(params.lengthFraction);
+            out.writeDouble(params.branchLength);
+            out.writeDouble(params.branchDistance);
+            out.writeInt(params.level);
+            out.writeInt(splitErrorIndices.get(params.segSplitError));
+        }
+
+        out.writeInt(tree.getFeatureCount());
+        for (int i = 0; i < tree.getFeatureCount(); i++) {
+            GenerationFeature feature = tree.getFeature(i);
+            if (feature instanceof DoubleTruncatedCone) {
+                out.writeByte(FEATURE_DOUBLE_TRUNCATED_CONE);
+                ((DoubleTruncatedCone) feature).write(out);
+            } else if (feature instanceof MNTruncatedCone) {
+                out.writeByte(FEATURE_MN_TRUNCATED_CONE);
+                ((MNTruncatedCone) feature).write(out);
+            } else if (feature instanceof LeafBranch) {
+                LeafBranch leafBranch = (LeafBranch) feature;
+                TreeSegmentNode node = leafBranch.getBranchNode();
+                out.writeByte(FEATURE_LEAF_BRANCH);
+                out.writeInt(treeCreationIndices.get(node.treeCreationParams));
+                out.writeInt(branchCreationIndices.get(node.branchCreationParams));
+                Helpers.writeStemVec3d(out, node.origin);
+                Helpers.writeStemVec3d(out, node.zUnit);
+                Helpers.writeStemVec3d(out, node.xUnit);
+                out.writeDouble(node.baseRadius);
+                out.writeInt(node.i);
+                out.writeDouble(node.nextChildOffset);
+                out.writeDouble(node.lastChildRotateAngle);
+                out.writeDouble(node.remainingCorrection);
+                out.writeLong(node.seed);
+                Helpers.writeStemVec3d(out, leafBranch.getAdjustment());
+            } else if (feature instanceof LazyBranch) {
+                LazyBranch lazyBranch = (LazyBranch) feature;
+                TreeBranchNode node = lazyBranch.getBranchNode();
+                out.writeByte(FEATURE_LAZY_BRANCH);
+                out.writeInt(treeCreationIndices.get(node.treeCreationParams));
+                Helpers.writeStemVec3d(out, node.origin);
+                Helpers.writeStemVec3d(out, node.zUnit);
+                Helpers.writeStemVec3d(out, node.xUnit);
+                out.writeDouble(node.length);
+                out.writeDouble(node.baseRadius);
+                out.writeInt(node.nChildren);
+                out.writeInt(node.level);
+                Helpers.writeStemVec3d(out, lazyBranch.getAdjustment());
+            } else {
+                throw new IOException("Can't store features of type "+feature.getClass().getSimpleName()+".");
+            }
+        }
+
+        int[] nodes = tree.getNodeData();
+        out.writeInt(nodes.length);
+        for (int value : nodes) {
+            out.writeInt(value);
+        }
+        BakedTree baked = tree.getBaked();
+        out.writeBoolean(baked != null);
+        if (baked != null) {
+            baked.write(out);
+        }
+    }
+
+    private static IntegerAABBTree read(ByteBuffer in, TreeTypeParams treeParams) {
+        // Split errors are overwritten with their stored values, so just need something to initialize them with.
+        Random unusedRandom = new Random(0);
+        TreeModel.TreeCreationParams[] treeCreationParams = new TreeModel.TreeCreationParams[
+                Helpers.readLength(in, TREE_CREATION_PARAMS_BYTES)];
+        for (int i = 0; i < treeCreationParams.length; i++) {
+            long seed = in.getLong();
+            StemVec3d xUnit = Helpers.readStemVec3d(in);
+            StemVec3d yUnit = Helpers.readStemVec3d(in);
+            StemVec3d zUnit = Helpers.readStemVec3d(in);
+            double lengthBase = in.getDouble();
+            int firstCutoffLevel = in.getInt();
+            double cutoffRadius = in.getDouble();
+            int firstLazyLevel = in.getInt();
+            treeCreationParams[i] = new TreeModel.TreeCreationParams(seed, treeParams, xUnit, yUnit, zUnit,
+                    lengthBase, firstCutoffLevel, cutoffRadius, firstLazyLevel);
+        }
+        SegSplitError[] splitErrors = new SegSplitError[Helpers.readLength(in, SPLIT_ERROR_BYTES)];
+        for (int i = 0; i < splitErrors.length; i++) {
+            int level = in.getInt();
+            splitErrors[i] = treeParams.fetchParams(level).initializeError(unusedRandom);
+            splitErrors[i].setSegSplitsError(in.getDouble());
+        }
+        TreeBranch.BranchCreationParams[] branchCreationParams = new TreeBranch.BranchCreationParams[
+                Helpers.readLength(in, BRANCH_CREATION_PARAMS_BYTES)];
+        for (int i = 0; i < branchCreationParams.length; i++) {
+            double stemRadius = in.getDouble();
+            double lengthFraction = in.getDouble();
+            double branchLength = in.getDouble();
+            double branchDistance = in.getDouble();
+            int level = in.getInt();
+            SegSplitError splitError = splitErrors[in.getInt()];
+            branchCreationParams[i] = new TreeBranch.BranchCreationParams(stemRadius, lengthFraction, branchLength,
+                    branchDistance, level, treeParams.fetchParams(level), splitError);
+        }
+
+        GenerationFeature[] features = new GenerationFeature[Helpers.readLength(in, MIN_FEATURE_BYTES)];
+        for (int i = 0; i < features.length; i++) {
+            byte type = in.get();
+            switch (type) {
+                case FEATURE_DOUBLE_TRUNCATED_CONE:
+                    features[i] = DoubleTruncatedCone.read(in);
+                    break;
+                case FEATURE_MN_TRUNCATED_CONE:
+                    features[i] = MNTruncatedCone.read(in);
+                    break;
+                case FEATURE_LEAF_BRANCH:
+                    TreeModel.TreeCreationParams treeCreation = treeCreationParams[in.getInt()];
+                    TreeBranch.BranchCreationParams branchCreation = branchCreationParams[in.getInt()];
+                    StemVec3d origin = Helpers.readStemVec3d(in);
+                    StemVec3d zUnit = Helpers.readStemVec3d(in);
+                    StemVec3d xUnit = Helpers.readStemVec3d(in);
+                    double baseRadius = in.getDouble();
+                    int segmentIndex = in.getInt();
+                    double nextChildOffset = in.getDouble();
+                    double lastChildRotateAngle = in.getDouble();
+                    double remainingCorrection = in.getDouble();
+                    long seed = in.getLong();
+                    TreeSegmentNode node = new TreeSegmentNode(origin, zUnit, xUnit, baseRadius, segmentIndex,
+                            nextChildOffset, lastChildRotateAngle, remainingCorrection, seed,
+                            treeCreation, branchCreation);
+                    features[i] = new LeafBranch(node, Helpers.readStemVec3d(in));
+                    break;
+                case FEATURE_LAZY_BRANCH:
+                    TreeModel.TreeCreationParams lazyParams = treeCreationParams[in.getInt()];
+                    StemVec3d lazyOrigin = Helpers.readStemVec3d(in);
+                    StemVec3d lazyZUnit = Helpers.readStemVec3d(in);
+                    StemVec3d lazyXUnit = Helpers.readStemVec3d(in);
+                    double length = in.getDouble();
+                    double lazyBaseRadius = in.getDouble();
+                    int nChildren = in.getInt();
+                    int level = in.getInt();
+                    TreeBranchNode branchNode = new TreeBranchNode(lazyOrigin, lazyZUnit, lazyXUnit, length,
+                            lazyBaseRadius, nChildren, level, lazyParams);
+                    features[i] = new LazyBranch(branchNode, Helpers.readStemVec3d(in));
+                    break;
+                default:
+                    throw new InvalidValueException("Unknown stored feature type "+type+".");
+            }
+        }
+
+        int[] nodes = new int[Helpers.readLength(in, Integer.BYTES)];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = in.getInt();
+        }
+        IntegerAABBTree tree = new IntegerAABBTree(features, nodes);
+        if (in.get() != 0) {
+            tree.setBaked(BakedTree.read(in));
+        }
+        return tree;
+    }
+}
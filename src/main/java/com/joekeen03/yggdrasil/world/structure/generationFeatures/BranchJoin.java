@@ -4,8 +4,6 @@ import com.joekeen03.yggdrasil.util.*;
 import com.joekeen03.yggdrasil.world.structure.tree.TreeBranch;
 import com.joekeen03.yggdrasil.world.structure.tree.TreeSegment;
 import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
-import io.github.opencubicchunks.cubicchunks.api.world.ICube;
-import io.github.opencubicchunks.cubicchunks.api.worldgen.CubePrimer;
 import net.minecraft.util.math.Vec3d;
 
 import javax.annotation.Nonnull;
@@ -96,12 +94,12 @@ public class BranchJoin implements GenerationFeature {
     }
 
     @Override
-    public void generate(CubePrimer cubePrimer, CubePos pos) {
-        int bufferSize = ICube.SIZE+2;
+    public void generate(CubeVoxelBuffer buffer, CubePos pos) {
+        int bufferSize = CubeVoxelBuffer.SIZE;
         // Buffer is 2 units bigger on all sides than the actual cube.
         Vec3d cubeRay = new Vec3d(pos.getMinBlockPos()).subtract(baseClosestPoint).subtract(1, 1, 1);
         // Stores what should be at this position.
-        byte[][][] buffer = new byte[bufferSize][bufferSize][bufferSize];
+        byte[][][] joinBuffer = new byte[bufferSize][bufferSize][bufferSize];
         // TODO Use int[][] buffers instead, with the int value for an x-z position storing the value of a flag for all
         //  y positions, and eac
         for (int x = 0; x < bufferSize; x++) {
@@ -124,7 +122,7 @@ public class BranchJoin implements GenerationFeature {
                         //  in terms of the base's (larger segment) radius
                         double f = Math.abs(Helpers.dotProduct(this.closestUnitVector, dx, dy, dz)/baseSegment.baseRadius);
                         if (1/baseFactor + 1/branchFactor > ((2.0-CUTOFF)*f+CUTOFF)) {
-                            buffer[x][y][z] = 0;
+                            joinBuffer[x][y][z] = 0;
                         }
                     }
                     // FIXME Possible weird generation if the branch spawns at the start/end of its parent segment.
@@ -0,0 +1,346 @@
+package com.joekeen03.yggdrasil.world.structure.generationFeatures;
+
+import com.joekeen03.yggdrasil.util.BlockHelpers;
+import com.joekeen03.yggdrasil.util.Helpers;
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+import io.github.opencubicchunks.cubicchunks.api.world.ICube;
+import io.github.opencubicchunks.cubicchunks.api.worldgen.CubePrimer;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.init.Blocks;
+import net.minecraft.util.math.Vec3d;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * What every generation feature in a cube wants placed, accrued before anything's written to the cube - the "buffer
+ * that's passed between the different generators, then passed through a final step" the features' old comments
+ * proposed. Features write into it in any order, then {@link #resolve} works out bark and log axes from the combined
+ * result, and sets each block in the cube once.
+ * Covers one block past each side of the cube, so bark can be worked out for the cube's outermost blocks; coordinates
+ * are relative to the block at the cube's min corner minus one, i.e. 0 to SIZE-1 on each axis.
+ * Each thing a voxel can hold is kept as its own bitset, one int per (x, y) row with bit z set for each voxel in the
+ * row that holds it, so features can fill a whole row at once and {@link #resolve} can check a row's neighbours with a
+ * few shifts and ANDs, rather than looking at each neighbour of each voxel.
+ * Not thread-safe; each world gen thread should reuse its own.
+ */
+public class CubeVoxelBuffer {
+    public static final int SIZE = ICube.SIZE+2;
+    // Every voxel in a row.
+    public static final int FULL_ROW = (1 << SIZE)-1;
+    // The voxels in a row which are in the cube itself.
+    private static final int CUBE_ROW = FULL_ROW & ~1 & ~(1 << (SIZE-1));
+
+    // What thin features (see setThin) place at a voxel.
+    public static final byte NONE = 0;
+    public static final byte LEAF = 1;
+    public static final byte WOOD_X = 2;
+    public static final byte WOOD_Y = 3;
+    public static final byte WOOD_Z = 4;
+
+    private static final IBlockState[] woodBlocks = new IBlockState[] {null, null,
+            BlockHelpers.blockOakX, BlockHelpers.blockOakY, BlockHelpers.blockOakZ};
+
+    // Wood from a solid feature (a cone or cylinder), which gets bark wherever it touches anything but other solid
+    //  wood, and replaces whatever was in the cube.
+    private final int[] solid = new int[SIZE*SIZE];
+    // Within a solid feature's radius, but cut off by one of its end planes; solid wood next to it doesn't get bark,
+    //  so segments' ends aren't capped in bark where the next segment carries on.
+    private final int[] capped = new int[SIZE*SIZE];
+    // Cleared out to air, e.g. a knot's hole; wins over everything else.
+    private final int[] carved = new int[SIZE*SIZE];
+    private final int[] leaves = new int[SIZE*SIZE];
+    // The axis of any wood, solid or thin, at each voxel; a wood voxel is in exactly one of these.
+    private final int[] woodX = new int[SIZE*SIZE];
+    private final int[] woodY = new int[SIZE*SIZE];
+    private final int[] woodZ = new int[SIZE*SIZE];
+    private final ArrayList<GenerationFeature> debugFeatures = new ArrayList<>();
+    private CubePos pos;
+    private boolean written;
+
+    /**
+     * Clears the buffer, for generating the specified cube.
+     * @param pos
+     */
+    public void reset(CubePos pos) {
+        this.pos = pos;
+        if (written) {
+            Arrays.fill(solid, 0);
+            Arrays.fill(capped, 0);
+            Arrays.fill(carved, 0);
+            Arrays.fill(leaves, 0);
+            Arrays.fill(woodX, 0);
+            Arrays.fill(woodY, 0);
+            Arrays.fill(woodZ, 0);
+            written = false;
+        }
+        debugFeatures.clear();
+    }
+
+    public CubePos getPos() {
+        return pos;
+    }
+
+    /**
+     * Whether nothing has been written since the last reset.
+     * @return
+     */
+    public boolean isEmpty() {
+        return !written && debugFeatures.isEmpty();
+    }
+
+    private static int row(int x, int y) {
+        return x*SIZE+y;
+    }
+
+    // The row's solid and capped voxels, as written; for checking what features write.
+    int getSolidRow(int x, int y) {
+        return solid[row(x, y)];
+    }
+
+    int getCappedRow(int x, int y) {
+        return capped[row(x, y)];
+    }
+
+    /**
+     * Places solid feature wood, with the specified axis (see {@link #woodAlong}), at each voxel of the row whose bit
+     * is set. Where solid features overlap, Y logs win over X logs, which win over Z logs, so what's placed doesn't
+     * depend on which order the features are found in.
+     * @param x
+     * @param y
+     * @param bits Bit z is set for each voxel to place wood at.
+     * @param wood
+     */
+    public void setSolidRow(int x, int y, int bits, byte wood) {
+        int r = row(x, y);
+        bits &= ~carved[r];
+        if (bits != 0) {
+            setAxis(r, bits & ~(solid[r] & outranking(r, wood)), wood);
+            solid[r] |= bits;
+            leaves[r] &= ~bits;
+            written = true;
+        }
+    }
+
+    /**
+     * Places solid feature wood at every voxel in the buffer, e.g. for a cube entirely within a trunk.
+     * @param wood
+     */
+    public void fillSolid(byte wood) {
+        for (int x = 0; x < SIZE; x++) {
+            for (int y = 0; y < SIZE; y++) {
+                setSolidRow(x, y, FULL_ROW, wood);
+            }
+        }
+    }
+
+    /**
+     * Marks each voxel of the row whose bit is set as being just past the end of a solid feature.
+     * @param x
+     * @param y
+     * @param bits
+     */
+    public void setCappedRow(int x, int y, int bits) {
+        if (bits != 0) {
+            capped[row(x, y)] |= bits;
+            written = true;
+        }
+    }
+
+    /**
+     * Clears out each voxel of the row whose bit is set to air, regardless of what any other feature puts there.
+     * @param x
+     * @param y
+     * @param bits
+     */
+    public void carveRow(int x, int y, int bits) {
+        if (bits != 0) {
+            int r = row(x, y);
+            carved[r] |= bits;
+            solid[r] &= ~bits;
+            capped[r] &= ~bits;
+            leaves[r] &= ~bits;
+            woodX[r] &= ~bits;
+            woodY[r] &= ~bits;
+            woodZ[r] &= ~bits;
+            written = true;
+        }
+    }
+
+    /**
+     * Places leaves, or the wood of a branch too thin for a solid feature, at the voxel. These only fill voxels no
+     * solid feature has, wood wins over leaves, and overlapping thin wood follows the same axis order as solid wood.
+     */
+    public void setThin(int x, int y, int z, byte material) {
+        int r = row(x, y);
+        int bit = 1 << z;
+        if (((solid[r] | carved[r]) & bit) == 0) {
+            if (material == LEAF) {
+                if (((woodX[r] | woodY[r] | woodZ[r]) & bit) == 0) {
+                    leaves[r] |= bit;
+                }
+            } else {
+                leaves[r] &= ~bit;
+                setAxis(r, bit & ~outranking(r, material), material);
+            }
+            written = true;
+        }
+    }
+
+    /**
+     * The voxels in the row holding wood whose axis takes priority over the specified one's.
+     */
+    private int outranking(int r, byte wood) {
+        return (wood == WOOD_Y) ? 0 : (wood == WOOD_X) ? woodY[r] : (woodY[r] | woodX[r]);
+    }
+
+    /**
+     * Whether wood of the first material takes priority over wood of the second where they overlap; see
+     * {@link #setSolidRow}.
+     * @param wood
+     * @param other
+     * @return
+     */
+    public static boolean outranks(byte wood, byte other) {
+        return rank(wood) > rank(other);
+    }
+
+    private static int rank(byte wood) {
+        return (wood == WOOD_Y) ? 2 : (wood == WOOD_X) ? 1 : 0;
+    }
+
+    private void setAxis(int r, int bits, byte wood) {
+        woodX[r] = (wood == WOOD_X) ? (woodX[r] | bits) : (woodX[r] & ~bits);
+        woodY[r] = (wood == WOOD_Y) ? (woodY[r] | bits) : (woodY[r] & ~bits);
+        woodZ[r] = (wood == WOOD_Z) ? (woodZ[r] | bits) : (woodZ[r] & ~bits);
+    }
+
+    /**
+     * Draws the feature's bounding box into the cube once it's resolved; see
+     * {@link GenerationFeature#generateDebugBoundingBox}.
+     * @param feature
+     */
+    public void addDebugBoundingBox(GenerationFeature feature) {
+        debugFeatures.add(feature);
+    }
+
+    /**
+     * The wood material for logs running along the specified axis.
+     * @param axis
+     * @return
+     */
+    public static byte woodFor(Helpers.PrincipalAxis axis) {
+        return (axis == Helpers.PrincipalAxis.Y) ? WOOD_Y : (axis == Helpers.PrincipalAxis.Z) ? WOOD_Z : WOOD_X;
+    }
+
+    /**
+     * The wood material for logs most aligned with the provided vector.
+     * @param unit
+     * @return
+     */
+    public static byte woodAlong(Vec3d unit) {
+        return woodFor(Helpers.getMainAxis(unit));
+    }
+
+    /**
+     * Writes everything in the buffer to the cube, one block at a time. Solid wood becomes bark wherever it touches a
+     * voxel that's neither solid wood nor just past a solid feature's end; thin wood becomes bark where it ends, i.e.
+     * where the voxel along its axis is empty.
+     * @param cubePrimer
+     */
+    public void resolve(CubePrimer cubePrimer) {
+        if (written) {
+            IBlockState air = Blocks.AIR.getDefaultState();
+            IBlockState leafState = Blocks.LEAVES.getDefaultState();
+            for (int x = 1; x <= ICube.SIZE; x++) {
+                for (int y = 1; y <= ICube.SIZE; y++) {
+                    int r = row(x, y);
+                    int wood = woodX[r] | woodY[r] | woodZ[r];
+                    int all = (carved[r] | wood | leaves[r]) & CUBE_ROW;
+                    if (all == 0) {
+                        continue;
+                    }
+                    // Solid wood next to anything open, along any of the six directions, is bark. The row's own
+                    //  neighbours along z are just the row shifted by one.
+                    int closed = solid[r] | capped[r];
+                    int open = ~(closed << 1) | ~(closed >>> 1)
+                            | ~(solid[r-SIZE] | capped[r-SIZE]) | ~(solid[r+SIZE] | capped[r+SIZE])
+                            | ~(solid[r-1] | capped[r-1]) | ~(solid[r+1] | capped[r+1]);
+                    int bark = solid[r] & open;
+                    // Thin wood at the end of its line is bark, i.e. where there's nothing at all on either side of
+                    //  it along its axis.
+                    int thinWood = wood & ~solid[r];
+                    if (thinWood != 0) {
+                        int occupied = closed | carved[r] | wood | leaves[r];
+                        bark |= thinWood & woodZ[r] & (~(occupied << 1) | ~(occupied >>> 1));
+                        bark |= thinWood & woodY[r] & (~occupiedAt(r-1) | ~occupiedAt(r+1));
+                        bark |= thinWood & woodX[r] & (~occupiedAt(r-SIZE) | ~occupiedAt(r+SIZE));
+                    }
+                    while (all != 0) {
+                        int bit = Integer.lowestOneBit(all);
+                        all &= ~bit;
+                        int z = Integer.numberOfTrailingZeros(bit)-1;
+                        if ((carved[r] & bit) != 0) {
+                            cubePrimer.setBlockState(x-1, y-1, z, air);
+                            continue;
+                        }
+                        IBlockState state;
+                        if ((bark & bit) != 0) {
+                            state = BlockHelpers.blockOakNone;
+                        } else if ((woodX[r] & bit) != 0) {
+                            state = woodBlocks[WOOD_X];
+                        } else if ((woodY[r] & bit) != 0) {
+                            state = woodBlocks[WOOD_Y];
+                        } else if ((woodZ[r] & bit) != 0) {
+                            state = woodBlocks[WOOD_Z];
+                        } else {
+                            state = leafState;
+                        }
+                        // Leaves and thin branches don't replace anything.
+                        if (((solid[r] & bit) != 0) || (cubePrimer.getBlockState(x-1, y-1, z) == air)) {
+                            cubePrimer.setBlockState(x-1, y-1, z, state);
+                        }
+                    }
+                }
+            }
+        }
+        for (GenerationFeature feature : debugFeatures) {
+            feature.generateDebugBoundingBox(cubePrimer, pos);
+        }
+    }
+
+    /**
+     * Places exactly what {@link #resolve} would for a buffer filled with solid wood of the specified material, and
+     * nothing else: logs along its axis in every block of the cube, with no bark, replacing whatever was there. For
+     * cubes known to be entirely within the tree, without having to write their features at all.
+     * @param cubePrimer
+     * @param wood
+     */
+    public static void fillCube(CubePrimer cubePrimer, byte wood) {
+        IBlockState state = woodBlocks[wood];
+        for (int x = 0; x < ICube.SIZE; x++) {
+            for (int y = 0; y < ICube.SIZE; y++) {
+                for (int z = 0; z < ICube.SIZE; z++) {
+                    cubePrimer.setBlockState(x, y, z, state);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether what {@link #resolve} places at the block (cube-relative coordinates) replaces whatever's already there,
+     * i.e. it's solid wood or carved out, rather than only going where there's air.
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    public boolean replaces(int x, int y, int z) {
+        int r = row(x+1, y+1);
+        return (((solid[r] | carved[r]) >>> (z+1)) & 1) != 0;
+    }
+
+    private int occupiedAt(int r) {
+        return solid[r] | capped[r] | carved[r] | woodX[r] | woodY[r] | woodZ[r] | leaves[r];
+    }
+}
@@ -1,5 +1,6 @@
 package com.joekeen03.yggdrasil.world.structure.generationFeatures;
 
+import com.joekeen03.yggdrasil.util.BoundingCapsule;
 import com.joekeen03.yggdrasil.util.IntegerAABB;
 import com.joekeen03.yggdrasil.util.IntegerMinimumAABB;
 import io.github.opencubicchunks.cubicchunks.api.util.Coords;
@@ -10,14 +11,104 @@ import net.minecraft.init.Blocks;
 import net.minecraft.util.math.Vec3i;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 public interface GenerationFeature {
+    /**
+     * How much of a cube's {@link CubeVoxelBuffer} a feature covers.
+     */
+    enum CubeCoverage {
+        // Writes nothing to the buffer.
+        OUTSIDE,
+        // Might write some of the buffer.
+        PARTIAL,
+        // Fills the whole buffer with solid wood.
+        INSIDE
+    }
+
     @Nonnull
     public IntegerMinimumAABB getMinimumBoundingBox();
 
+    /**
+     * Whether {@link #getRefinedBoundingBox} might ever return anything, so the IntegerAABBTree knows which features
+     * to keep asking.
+     * @return
+     */
+    default boolean mayRefineBoundingBox() {
+        return false;
+    }
+
+    /**
+     * Bounds tighter than {@link #getMinimumBoundingBox}, for features which only find out where they actually reach
+     * once they've been built; the IntegerAABBTree holding the feature refits itself to them once they're known. Must
+     * still cover every cube whose buffer the feature writes to.
+     * @return The tighter bounds (cube coordinates, inclusive), or null if they aren't known (yet).
+     */
+    @Nullable
+    default IntegerAABB getRefinedBoundingBox() {
+        return null;
+    }
+
     public boolean intersectsCube(CubePos pos);
 
-    public void generate(CubePrimer cubePrimer, CubePos pos);
+    /**
+     * A capsule around everything this feature writes to any cube's buffer, which the IntegerAABBTree checks cubes
+     * against after the bounding box, before asking the feature itself. Only worth it for long, thin features, whose
+     * boxes are mostly empty.
+     * @return The capsule, or null if there isn't a useful one.
+     */
+    @Nullable
+    default BoundingCapsule getBoundingCapsule() {
+        return null;
+    }
+
+    /**
+     * Conservatively classifies the cube's buffer (the cube plus one block on each side) against this feature; it's
+     * always fine to say PARTIAL.
+     * @param pos
+     * @return
+     */
+    default CubeCoverage classifyCube(CubePos pos) {
+        return CubeCoverage.PARTIAL;
+    }
+
+    /**
+     * The wood this fills the whole buffer with wherever {@link #classifyCube} says INSIDE; never asked of features
+     * which don't ever say that.
+     * @return
+     */
+    default byte getSolidWood() {
+        return CubeVoxelBuffer.NONE;
+    }
+
+    /**
+     * Whether writing this into a buffer that's already solid wood of the specified material everywhere could change
+     * any of the cube's blocks, e.g. by carving into it, or with wood whose axis takes priority. Cubes some feature
+     * fills, and which nothing else touching them could change, are placed without writing any of their features (see
+     * {@link com.joekeen03.yggdrasil.util.CubeOccupancy}); it's always fine to say true.
+     * @param wood
+     * @return
+     */
+    default boolean mayOverrideSolid(byte wood) {
+        return true;
+    }
+
+    /**
+     * Writes the part of this feature within the cube into the buffer; the buffer works out what's actually placed
+     * once every feature in the cube has been written to it.
+     * @param buffer Buffer for the cube being generated.
+     * @param pos
+     */
+    public void generate(CubeVoxelBuffer buffer, CubePos pos);
+
+    /**
+     * Rough estimate of how much memory this feature keeps alive, in bytes. Used to weigh cached trees for eviction,
+     * so it only needs to be in the right ballpark.
+     * @return
+     */
+    default long estimateRetainedBytes() {
+        return 256;
+    }
 
     // FIXME Should this be handled this way?
     default void generateDebugBoundingBox(CubePrimer cubePrimer, CubePos pos) {
@@ -0,0 +1,123 @@
+package com.joekeen03.yggdrasil.world.structure.generationFeatures;
+
+import com.joekeen03.yggdrasil.util.Helpers;
+import com.joekeen03.yggdrasil.util.IntegerAABB;
+import com.joekeen03.yggdrasil.util.IntegerAABBTree;
+import com.joekeen03.yggdrasil.util.IntegerMinimumAABB;
+import com.joekeen03.yggdrasil.util.StemVec3d;
+import com.joekeen03.yggdrasil.world.structure.TreeMegaStructureGenerator;
+import com.joekeen03.yggdrasil.world.structure.tree.TreeBranchNode;
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+import net.minecraft.util.math.Vec3d;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A whole branch which is only built once a cube within its bounds is generated. Its bounding box is a conservative
+ * sphere around the branch's origin; once built, its own features get their own IntegerAABBTree, so only the parts of
+ * the branch near the cube are generated.
+ */
+public class LazyBranch implements GenerationFeature {
+    // Rough size of this feature plus its node.
+    private static final long BASE_BYTES = 368;
+
+    private final TreeBranchNode branchNode;
+    private final StemVec3d adjustment;
+    // The sphere the whole branch is within; kept, as it's checked against every cube near the branch.
+    private final Vec3d center;
+    private final double maxReach;
+    private volatile IntegerAABBTree materialized;
+
+    public LazyBranch(TreeBranchNode branchNode, StemVec3d adjustment) {
+        this.branchNode = branchNode;
+        this.adjustment = adjustment;
+        this.center = branchNode.origin.add(adjustment).toMCVector();
+        this.maxReach = branchNode.computeMaxReach();
+    }
+
+    public TreeBranchNode getBranchNode() {
+        return branchNode;
+    }
+
+    public StemVec3d getAdjustment() {
+        return adjustment;
+    }
+
+    @Override
+    @Nonnull
+    public IntegerMinimumAABB getMinimumBoundingBox() {
+        // The same sphere intersectsCube checks; maxReach alone can fall just short of where the lines end up.
+        return Helpers.sphereBoundingBox(this, center, maxReach+1);
+    }
+
+    @Override
+    public boolean mayRefineBoundingBox() {
+        return true;
+    }
+
+    @Override
+    public IntegerAABB getRefinedBoundingBox() {
+        // Once it's built, its own tree's bounds are exactly as far as its features reach.
+        IntegerAABBTree tree = materialized;
+        return (tree != null) ? tree.getBounds() : null;
+    }
+
+    @Override
+    public boolean intersectsCube(CubePos pos) {
+        // Its features each check the cube themselves once it's built; this just saves building it for cubes its
+        //  sphere doesn't reach. The extra block covers what its cones cap past their ends.
+        return Helpers.sphereIntersectsCube(center, maxReach+1, pos);
+    }
+
+    @Override
+    public CubeCoverage classifyCube(CubePos pos) {
+        return intersectsCube(pos) ? CubeCoverage.PARTIAL : CubeCoverage.OUTSIDE;
+    }
+
+    @Override
+    public boolean mayOverrideSolid(byte wood) {
+        // All it ever builds is cones and leaf branches (see TreeMegaStructureGenerator.createGenerationFeatures), and
+        //  nothing those place takes priority over Y logs.
+        return wood != CubeVoxelBuffer.WOOD_Y;
+    }
+
+    @Override
+    public void generate(CubeVoxelBuffer buffer, CubePos pos) {
+        getMaterialized().forEachLeaf(pos, feature -> feature.generate(buffer, pos));
+    }
+
+    /**
+     * Builds the branch, if it hasn't been already.
+     * @return The tree of the branch's features.
+     */
+    public IntegerAABBTree getMaterialized() {
+        IntegerAABBTree tree = materialized;
+        if (tree == null) {
+            // Other threads generating cubes near this branch wait for it, rather than building it again.
+            synchronized (this) {
+                tree = materialized;
+                if (tree == null) {
+                    tree = new IntegerAABBTree(TreeMegaStructureGenerator
+                            .createGenerationFeatures(branchNode.create(), adjustment)
+                            .toArray(new GenerationFeature[0]));
+                    materialized = tree;
+                }
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Drops the built branch, if it's been built, so it's only built again once a cube needs it; e.g. once a baked tree
+     * has everything it needs from it.
+     */
+    public void releaseMaterialized() {
+        materialized = null;
+    }
+
+    @Override
+    public long estimateRetainedBytes() {
+        IntegerAABBTree tree = materialized;
+        return BASE_BYTES + ((tree != null) ? tree.estimateRetainedBytes() : 0);
+    }
+}
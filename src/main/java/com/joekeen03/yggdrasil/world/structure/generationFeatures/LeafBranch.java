@@ -1,38 +1,48 @@
 package com.joekeen03.yggdrasil.world.structure.generationFeatures;
 
+import com.joekeen03.yggdrasil.config.YggdrasilConfig;
 import com.joekeen03.yggdrasil.util.*;
 import com.joekeen03.yggdrasil.world.structure.tree.TreeBranch;
 import com.joekeen03.yggdrasil.world.structure.tree.TreeSegment;
 import com.joekeen03.yggdrasil.world.structure.tree.TreeSegmentGenerated;
 import com.joekeen03.yggdrasil.world.structure.tree.TreeSegmentNode;
-import com.joekeen03.yggdrasil.world.structure.tree.StemParams;
+import io.github.opencubicchunks.cubicchunks.api.util.Coords;
 import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
-import io.github.opencubicchunks.cubicchunks.api.world.ICube;
-import io.github.opencubicchunks.cubicchunks.api.worldgen.CubePrimer;
-import net.minecraft.block.state.IBlockState;
-import net.minecraft.init.Blocks;
 import net.minecraft.util.math.Vec3d;
 import net.minecraft.util.math.Vec3i;
 
 import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
 
 public class LeafBranch implements GenerationFeature {
     private final TreeSegmentNode branchNode;
     private final StemVec3d adjustment;
-    private TreeSegmentGenerated generatedSectionCache;
+    // The sphere the whole branch is within; kept, as it's checked against every cube near the branch.
+    private final Vec3d center;
+    private final double maxReach;
+    // Built the first time a cube near the branch is generated.
+    private volatile SegmentIndex segmentIndex;
 
-    private static final byte AIR = 0;
-    private static final byte LEAF = 1;
-    private static final byte WOODX = 2;
-    private static final byte WOODY = 3;
-    private static final byte WOODZ = 4;
-    private static final byte WOODNONE = 5;
-    private static final IBlockState[] blockArray = new IBlockState[] {null, Blocks.LEAVES.getDefaultState(),
-            BlockHelpers.blockOakX, BlockHelpers.blockOakY, BlockHelpers.blockOakZ, BlockHelpers.blockOakNone};
+    // Rough sizes of this feature plus its node, and of one materialized segment with its vectors & arrays.
+    private static final long BASE_BYTES = 304;
+    private static final long SEGMENT_BYTES = 224;
 
     public LeafBranch(TreeSegmentNode branchNode, StemVec3d adjustment) {
         this.branchNode = branchNode;
         this.adjustment = adjustment;
+        this.center = branchNode.origin.add(adjustment).toMCVector();
+        this.maxReach = computeMaxReach(branchNode);
+    }
+
+    public TreeSegmentNode getBranchNode() {
+        return branchNode;
+    }
+
+    public StemVec3d getAdjustment() {
+        return adjustment;
     }
 
     /*
@@ -49,93 +59,69 @@ public class LeafBranch implements GenerationFeature {
     @Override
     @Nonnull
     public IntegerMinimumAABB getMinimumBoundingBox() {
-        // Max possible length - at each level, it's the current level's length + the max length for the child if
-        //  the child's max length is at the tip, or the max length of the child if the child's max length is at the base.
+        // The same sphere intersectsCube checks; maxReach alone can fall just short of where the lines end up.
+        return Helpers.sphereBoundingBox(this, center, maxReach+1);
+    }
+
+    /**
+     * How far from the node's origin anything in its branch can reach.
+     */
+    private static double computeMaxReach(TreeSegmentNode branchNode) {
         double branchLength = branchNode.branchCreationParams.branchLength;
         double offset = branchLength-branchNode.branchCreationParams.lengthFraction
                 *(branchNode.branchCreationParams.currBranch.curveRes-branchNode.i);
-        double maxTotalLength = computeMaxLength(branchLength, offset, branchNode.branchCreationParams.level);
-        double maxLengthCubeScale = maxTotalLength/16;
-        Vec3d origin = branchNode.origin.toMCVector();
-        return new IntegerMinimumAABB(this,
-                (int) Math.floor(origin.x-maxLengthCubeScale), (int) Math.floor(origin.y-maxLengthCubeScale),
-                (int) Math.floor(origin.z-maxLengthCubeScale), (int) Math.ceil(origin.x+maxLengthCubeScale),
-                (int) Math.ceil(origin.y+maxLengthCubeScale), (int) Math.ceil(origin.z+maxLengthCubeScale));
+        return TreeBranch.computeMaxReach(branchNode.treeCreationParams, branchLength, offset,
+                branchNode.branchCreationParams.level);
     }
 
-    private double computeMaxLength(double maxLength, double offset, int level) {
-        if (level+1 >= branchNode.treeCreationParams.treeParams.stemLevels) { // Next level is the leaf level
-            return maxLength;
-        }
-        StemParams childParams = branchNode.treeCreationParams.treeParams.fetchParams(level+1);
-        double maxChildRelativeLength = childParams.length+childParams.lengthVariation;
-        // This assumes the max length only occurs at the base or tip. Which is guaranteed true for any level past the
-        //  trunk. Not sure about the trunk, though.
-        double maxChildLengthBase = computeChildLength(maxLength, maxChildRelativeLength, offset, level);
-        double maxChildLengthTip = computeChildLength(maxLength, maxChildRelativeLength, maxLength, level);
-        double childMaxLength = computeMaxLength(Math.max(maxChildLengthBase, maxChildLengthTip), 0, level+1);
-        double maxTotalLength = childMaxLength;
-        if (maxChildLengthTip > maxChildLengthBase) {
-            maxTotalLength = childMaxLength + (maxLength-offset);
-        }
-        return maxTotalLength;
+    @Override
+    public boolean mayRefineBoundingBox() {
+        return true;
     }
 
-    private double computeChildLength(double lengthParent, double lengthChildMax, double offsetChild, int parentLevel) {
-        if (parentLevel == 0) {
-            double lengthChild = lengthParent*lengthChildMax
-                    *branchNode.treeCreationParams.treeParams.shape.getRatio.applyAsDouble(
-                            (lengthParent-offsetChild)/(lengthParent-branchNode.treeCreationParams.lengthBase));
-            return lengthChild;
-        } else {
-            double lengthChild = lengthChildMax*(lengthParent-0.6*offsetChild);
-            return lengthChild;
-        }
+    @Override
+    public IntegerAABB getRefinedBoundingBox() {
+        SegmentIndex index = segmentIndex;
+        return (index != null) ? index.bounds : null;
     }
 
     @Override
     public boolean intersectsCube(CubePos pos) {
-        return true;
+        SegmentIndex index = segmentIndex;
+        if (index != null) {
+            // Once it's built, it's known exactly which cubes any of its segments reach.
+            int cell = index.cellOf(pos);
+            return (cell >= 0) && (index.cellStarts[cell] != index.cellStarts[cell+1]);
+        }
+        // However the branch curves, it stays within the sphere its bounding box is made from; the extra block's just
+        //  a margin for rounding.
+        return Helpers.sphereIntersectsCube(center, maxReach+1, pos);
+    }
+
+    @Override
+    public CubeCoverage classifyCube(CubePos pos) {
+        return intersectsCube(pos) ? CubeCoverage.PARTIAL : CubeCoverage.OUTSIDE;
+    }
+
+    @Override
+    public boolean mayOverrideSolid(byte wood) {
+        // Its wood and leaves only ever go where no solid feature has put anything.
+        return false;
     }
 
     @Override
-    public void generate(CubePrimer cubePrimer, CubePos pos) {
-        int bufferSize = ICube.SIZE+2;
+    public void generate(CubeVoxelBuffer buffer, CubePos pos) {
         Vec3i bufferOrigin = new Vec3i(pos.getMinBlockX()-1, pos.getMinBlockY()-1, pos.getMinBlockZ()-1);
-        byte[][][] buffer = new byte[bufferSize][bufferSize][bufferSize];
-        if (generatedSectionCache == null) {
-            generatedSectionCache = branchNode.create();
+        SegmentIndex index = getSegmentIndex();
+        int cell = index.cellOf(pos);
+        if (cell < 0) {
+            return;
         }
-        generateSegment(buffer, bufferSize, bufferOrigin, generatedSectionCache);
-
-        for (int x = 0; x < ICube.SIZE; x++) {
-            for (int y = 0; y < ICube.SIZE; y++) {
-                for (int z = 0; z < ICube.SIZE; z++) {
-                    int material = buffer[x+1][y+1][z+1];
-                    switch (material) {
-                        case WOODX:
-                            if (buffer[x][y+1][z+1] == AIR || buffer[x+2][y+1][z+1] == AIR) {
-                                material = WOODNONE;
-                            }
-                            break;
-                        case WOODY:
-                            if (buffer[x+1][y][z+1] == AIR || buffer[x+1][y+2][z+1] == AIR) {
-                                material = WOODNONE;
-                            }
-                            break;
-                        case WOODZ:
-                            if (buffer[x+1][y+1][z] == AIR || buffer[x+1][y+1][z+2] == AIR) {
-                                material = WOODNONE;
-                            }
-                            break;
-                    }
-                    if (material > AIR) {
-                        if (cubePrimer.getBlockState(x, y, z) == Blocks.AIR.getDefaultState()) {
-                            cubePrimer.setBlockState(x, y, z, blockArray[material]);
-                        }
-                    }
-                }
-            }
+        // Wood ends up as bark where its line ends, and leaves and wood only go where the rest of the tree and the
+        //  terrain haven't put anything; see CubeVoxelBuffer.resolve
+        for (int i = index.cellStarts[cell]; i < index.cellStarts[cell+1]; i++) {
+            int segment = index.cellSegments[i];
+            lineRasterization(buffer, bufferOrigin, index.segments[segment], index.fillValues[segment]);
         }
         /*
         Logic:
@@ -152,135 +138,275 @@ public class LeafBranch implements GenerationFeature {
          */
     }
 
-    private void generateSegment(byte[][][] buffer, int bufferSize, Vec3i bufferOrigin, TreeSegmentGenerated segment) {
-        // Generate all segments at this level first.
-        byte fillValue = LEAF;
-        if (segment.level < branchNode.treeCreationParams.treeParams.stemLevels
-                || branchNode.treeCreationParams.treeParams.leafParams.leaves == 0) {
-            fillValue = AIR;
+    @Override
+    public long estimateRetainedBytes() {
+        SegmentIndex index = segmentIndex;
+        return BASE_BYTES + ((index != null) ? index.estimateRetainedBytes() : 0);
+    }
+
+    private SegmentIndex getSegmentIndex() {
+        SegmentIndex index = segmentIndex;
+        if (index == null) {
+            // Other threads generating cubes near this branch wait for it, rather than building it again.
+            synchronized (this) {
+                index = segmentIndex;
+                if (index == null) {
+                    ArrayList<TreeSegmentGenerated> segments = new ArrayList<>();
+                    collectSegments(branchNode.create(), segments);
+                    index = new SegmentIndex(segments.toArray(new TreeSegmentGenerated[0]));
+                    segmentIndex = index;
+                }
+            }
         }
-        lineRasterization(buffer, bufferSize, bufferOrigin, segment, fillValue);
+        return index;
+    }
+
+    /**
+     * Adds the segment and everything after it, in the order they used to be generated: each segment, then the rest
+     * of its branch, then its children.
+     */
+    private static void collectSegments(TreeSegmentGenerated segment, List<TreeSegmentGenerated> segments) {
+        segments.add(segment);
         for (TreeSegment nextSegment : segment.nextSegments) {
-            generateSegment(buffer, bufferSize, bufferOrigin, (TreeSegmentGenerated) nextSegment);
+            collectSegments((TreeSegmentGenerated) nextSegment, segments);
         }
         for (TreeBranch child : segment.children) {
-            generateSegment(buffer, bufferSize, bufferOrigin, (TreeSegmentGenerated) child.firstSegment);
+            collectSegments((TreeSegmentGenerated) child.firstSegment, segments);
         }
     }
 
-    private void lineRasterization(byte[][][] buffer, int bufferSize, Vec3i bufferOrigin, TreeSegmentGenerated segment,
-                                   byte fillValue) {
-        // FIXME - doesn't handle  other primary axes, or the primary axis needing to be swapped (zUnit points in the
-        //  wrong direction).
-        //      I.e. it assumes stopZ > startZ
-        // Bresenham's line algorithm - treats the center of pixels (blocks, in this case), as having integer coords
-        //  So the center of the block at (0, 0, 0) will have coords (0, 0, 0), while the MC-origin of that block
-        //  (the -x, -y, -z corner) would have coords (-0.5, -0.5, -0.5).
-        Vec3d activeZUnit = segment.zUnit.toMCVector();
-        Vec3d origin = segment.origin.add(adjustment).toMCVector();
-        if (Math.abs(activeZUnit.z) > Math.abs(activeZUnit.y)
-                && Math.abs(activeZUnit.z) > Math.abs(activeZUnit.x)) { // Primary axis is Z
-            if (activeZUnit.z < 0) { // Need to flip the segment so we work from its other end.
-                origin = origin.add(activeZUnit.scale(segment.length));
-                activeZUnit = activeZUnit.scale(-1);
+    private byte fillValueFor(TreeSegmentGenerated segment) {
+        if (segment.level < branchNode.treeCreationParams.treeParams.stemLevels
+                || branchNode.treeCreationParams.treeParams.leafParams.leaves == 0) {
+            return CubeVoxelBuffer.NONE;
+        }
+        return CubeVoxelBuffer.LEAF;
+    }
+
+    /**
+     * The branch's materialized segments, bucketed by which cubes' buffers their lines can reach, so each cube only
+     * rasterizes the few segments which cross it. The buckets are a dense grid over the cubes any segment reaches -
+     * a leaf cluster only covers a handful of cubes - stored as one list per cell, all back to back.
+     */
+    private class SegmentIndex {
+        final TreeSegmentGenerated[] segments;
+        final byte[] fillValues;
+        final int minX, minY, minZ, lengthX, lengthY, lengthZ;
+        // The cubes any segment reaches.
+        final IntegerAABB bounds;
+        // Cell c's segments are cellSegments[cellStarts[c]] to cellSegments[cellStarts[c+1]-1], in segment order.
+        final int[] cellStarts;
+        final int[] cellSegments;
+
+        SegmentIndex(TreeSegmentGenerated[] segments) {
+            this.segments = segments;
+            this.fillValues = new byte[segments.length];
+            int[] cubeBounds = new int[segments.length*6];
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+            int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+            for (int i = 0; i < segments.length; i++) {
+                fillValues[i] = fillValueFor(segments[i]);
+                Vec3d start = segments[i].origin.add(adjustment).toMCVector();
+                Vec3d end = start.add(segments[i].zUnit.toMCVector().scale(segments[i].length));
+                int base = i*6;
+                // The rasterized line only covers blocks the segment passes through, and each block's in its own cube's
+                //  buffer and in the padding of its neighbours'.
+                cubeBounds[base] = Coords.blockToCube((int) Math.floor(Math.min(start.x, end.x))-1);
+                cubeBounds[base+1] = Coords.blockToCube((int) Math.floor(Math.min(start.y, end.y))-1);
+                cubeBounds[base+2] = Coords.blockToCube((int) Math.floor(Math.min(start.z, end.z))-1);
+                cubeBounds[base+3] = Coords.blockToCube((int) Math.floor(Math.max(start.x, end.x))+1);
+                cubeBounds[base+4] = Coords.blockToCube((int) Math.floor(Math.max(start.y, end.y))+1);
+                cubeBounds[base+5] = Coords.blockToCube((int) Math.floor(Math.max(start.z, end.z))+1);
+                minX = Math.min(minX, cubeBounds[base]);
+                minY = Math.min(minY, cubeBounds[base+1]);
+                minZ = Math.min(minZ, cubeBounds[base+2]);
+                maxX = Math.max(maxX, cubeBounds[base+3]);
+                maxY = Math.max(maxY, cubeBounds[base+4]);
+                maxZ = Math.max(maxZ, cubeBounds[base+5]);
             }
-            if (fillValue == AIR) {
-                fillValue = WOODZ;
+            this.minX = minX;
+            this.minY = minY;
+            this.minZ = minZ;
+            this.lengthX = maxX-minX+1;
+            this.lengthY = maxY-minY+1;
+            this.lengthZ = maxZ-minZ+1;
+            this.bounds = new IntegerAABB(minX, minY, minZ, maxX, maxY, maxZ);
+            // Count each cell's segments, turn the counts into where each cell's list starts, then fill the lists.
+            this.cellStarts = new int[lengthX*lengthY*lengthZ+1];
+            for (int i = 0; i < segments.length; i++) {
+                forEachCell(cubeBounds, i, cell -> cellStarts[cell+1]++);
             }
-            double slopeXZ = activeZUnit.x/ activeZUnit.z;
-            double slopeYZ = activeZUnit.y/ activeZUnit.z;
-            double segmentStartZLocal = origin.z-bufferOrigin.getZ();
-            double segmentStopZLocal = segmentStartZLocal+ activeZUnit.z*segment.length;
-            // Math.floor(segmentStartZLocal); z-coord of the block containing the segment's start point.
-            //  This is equivalent to Math.round(segmentStartZLocal-0.5), where z-0.5 is the transformation from
-            //  MC-space to the integer-center space used for Bresenham's.
-            int startLocalZ = Math.max((int) Math.floor(segmentStartZLocal), 0);
-            int stopLocalZ = Math.min((int) Math.floor(segmentStopZLocal), bufferSize-1);
-            int currLocalZ = Math.max(startLocalZ, bufferOrigin.getZ()); // Start within the cube's z-bounds.
-            // Distance between the segment's actual start z-coord, and the center z-coord of the block we're starting
-            //  the rasterization in.
-            double zOffset = startLocalZ+0.5-segmentStartZLocal;
-            // Integer-center X & Y coords of the line for the integer-center startLocalZ.
-            double currLocalX = (origin.x-bufferOrigin.getX())
-                    +slopeXZ*(zOffset)-0.5;
-            double currLocalY = (origin.y-bufferOrigin.getY())
-                    +slopeYZ*(zOffset)-0.5;
-            while (currLocalZ <= stopLocalZ) {
-                int x = (int)Math.round(currLocalX);
-                int y = (int)Math.round(currLocalY);
-                if (x < bufferSize && y < bufferSize && x >= 0 && y >= 0) {
-                    buffer[x][y][currLocalZ] |= fillValue;
-                    // Technically, not subtracting 0.5 from the currLocalX & Y and using Math.floor instead of Math.round
-                    // would be faster (I think?), but I do it this way for clarity.
-                }
-                currLocalZ += 1;
-                currLocalX += slopeXZ;
-                currLocalY += slopeYZ;
+            for (int cell = 0; cell < cellStarts.length-1; cell++) {
+                cellStarts[cell+1] += cellStarts[cell];
             }
-        } else if (Math.abs(activeZUnit.x) > Math.abs(activeZUnit.y)) { // Primary axis is X
-            if (activeZUnit.x < 0) { // Need to flip the segment so we work from its other end.
-                origin = origin.add(activeZUnit.scale(segment.length));
-                activeZUnit = activeZUnit.scale(-1);
+            this.cellSegments = new int[cellStarts[cellStarts.length-1]];
+            int[] filled = Arrays.copyOf(cellStarts, cellStarts.length-1);
+            for (int i = 0; i < segments.length; i++) {
+                int segment = i;
+                forEachCell(cubeBounds, i, cell -> cellSegments[filled[cell]++] = segment);
             }
-            if (fillValue == AIR) {
-                fillValue = WOODX;
+        }
+
+        private void forEachCell(int[] cubeBounds, int segment, IntConsumer consumer) {
+            int base = segment*6;
+            for (int x = cubeBounds[base]; x <= cubeBounds[base+3]; x++) {
+                for (int y = cubeBounds[base+1]; y <= cubeBounds[base+4]; y++) {
+                    for (int z = cubeBounds[base+2]; z <= cubeBounds[base+5]; z++) {
+                        consumer.accept(cell(x, y, z));
+                    }
+                }
+            }
+        }
+
+        private int cell(int x, int y, int z) {
+            return ((x-minX)*lengthY+(y-minY))*lengthZ+(z-minZ);
+        }
+
+        /**
+         * @param pos
+         * @return The cube's cell, or -1 if no segment reaches it.
+         */
+        int cellOf(CubePos pos) {
+            if ((pos.getX() < minX) || (pos.getX() >= minX+lengthX) || (pos.getY() < minY)
+                    || (pos.getY() >= minY+lengthY) || (pos.getZ() < minZ) || (pos.getZ() >= minZ+lengthZ)) {
+                return -1;
             }
-            double slopeZX = activeZUnit.z/ activeZUnit.x;
-            double slopeYX = activeZUnit.y/ activeZUnit.x;
-            double segmentStartXLocal = origin.x-bufferOrigin.getX();
-            double segmentStopXLocal = segmentStartXLocal+ activeZUnit.x*segment.length;
+            return cell(pos.getX(), pos.getY(), pos.getZ());
+        }
 
-            int startLocalX = Math.max((int) Math.floor(segmentStartXLocal), 0);
-            int stopLocalX = Math.min((int) Math.floor(segmentStopXLocal), bufferSize-1);
-            int currLocalX = Math.max(startLocalX, bufferOrigin.getX());
+        long estimateRetainedBytes() {
+            return segments.length*(SEGMENT_BYTES+1) + 4L*(cellStarts.length+cellSegments.length);
+        }
+    }
 
-            double xOffset = startLocalX+0.5-segmentStartXLocal;
-            double currLocalY = (origin.y-bufferOrigin.getY())
-                    +slopeYX*(xOffset)-0.5;
-            double currLocalZ = (origin.z-bufferOrigin.getZ())
-                    +slopeZX*(xOffset)-0.5;
-            while (currLocalX <= stopLocalX) {
-                int z = (int)Math.round(currLocalZ);
-                int y = (int)Math.round(currLocalY);
-                if (z < bufferSize && y < bufferSize && z >= 0 && y >= 0) {
-                    buffer[currLocalX][y][z] |= fillValue;
+    /**
+     * Rasterizes the segment's line into the buffer, with a 3D DDA: the segment's first clipped to the buffer, so only
+     * the voxels it passes through within the buffer are walked. Normally that's one voxel per layer along the
+     * segment's main axis, which leaves diagonal steps; with {@link YggdrasilConfig#supercoverLeafBranches}, it's
+     * every voxel the line touches, so there are no gaps for light (or the player) to get through.
+     * @param buffer
+     * @param bufferOrigin Block coords of the buffer's first voxel.
+     * @param segment
+     * @param fillValue What to place - CubeVoxelBuffer.NONE for wood along the segment.
+     */
+    private void lineRasterization(CubeVoxelBuffer buffer, Vec3i bufferOrigin, TreeSegmentGenerated segment,
+                                   byte fillValue) {
+        Vec3d unit = segment.zUnit.toMCVector();
+        Vec3d origin = segment.origin.add(adjustment).toMCVector();
+        if (fillValue == CubeVoxelBuffer.NONE) {
+            fillValue = CubeVoxelBuffer.woodAlong(unit);
+        }
+        // In the buffer's coords, voxel (0, 0, 0) spans [0, 1) along each axis.
+        double[] start = {origin.x-bufferOrigin.getX(), origin.y-bufferOrigin.getY(), origin.z-bufferOrigin.getZ()};
+        double[] direction = {unit.x, unit.y, unit.z};
+        // Where along the segment it's within the buffer.
+        double tStart = 0;
+        double tStop = segment.length;
+        for (int axis = 0; axis < 3; axis++) {
+            if (direction[axis] == 0) {
+                if ((start[axis] < 0) || (start[axis] >= CubeVoxelBuffer.SIZE)) {
+                    return;
                 }
-                currLocalX++;
-                currLocalY += slopeYX;
-                currLocalZ += slopeZX;
+                continue;
             }
-        } else { // Primary axis is Y
-            if (activeZUnit.y < 0) { // Need to flip the segment so we work from its other end.
-                origin = origin.add(activeZUnit.scale(segment.length));
-                activeZUnit = activeZUnit.scale(-1);
+            double tLow = -start[axis]/direction[axis];
+            double tHigh = (CubeVoxelBuffer.SIZE-start[axis])/direction[axis];
+            tStart = Math.max(tStart, Math.min(tLow, tHigh));
+            tStop = Math.min(tStop, Math.max(tLow, tHigh));
+        }
+        if (tStart > tStop) {
+            return;
+        }
+        if (YggdrasilConfig.supercoverLeafBranches) {
+            walkSupercover(buffer, start, direction, tStart, tStop, fillValue);
+        } else {
+            walkThin(buffer, start, direction, tStart, tStop, fillValue);
+        }
+    }
+
+    /**
+     * Places one voxel for each layer of the buffer along the line's main axis that it passes through, where the line
+     * crosses the middle of that layer.
+     */
+    private static void walkThin(CubeVoxelBuffer buffer, double[] start, double[] direction, double tStart,
+                                 double tStop, byte fillValue) {
+        int main = axisIndex(Helpers.getMainAxis(new Vec3d(direction[0], direction[1], direction[2])));
+        if (main < 0) {
+            return;
+        }
+        int first = voxel(start[main]+tStart*direction[main]);
+        int last = voxel(start[main]+tStop*direction[main]);
+        int step = (direction[main] > 0) ? 1 : -1;
+        int[] voxel = new int[3];
+        for (int layer = first; ; layer += step) {
+            // Stay on the clipped segment, in case it ends before the middle of its first or last layer.
+            double t = Math.min(Math.max((layer+0.5-start[main])/direction[main], tStart), tStop);
+            for (int axis = 0; axis < 3; axis++) {
+                voxel[axis] = (axis == main) ? layer : voxel(start[axis]+t*direction[axis]);
             }
-            if (fillValue == AIR) {
-                fillValue = WOODY;
+            buffer.setThin(voxel[0], voxel[1], voxel[2], fillValue);
+            if (layer == last) {
+                break;
             }
-            double slopeXY = activeZUnit.x/ activeZUnit.y;
-            double slopeZY = activeZUnit.z/ activeZUnit.y;
-            double segmentStartYLocal = origin.y-bufferOrigin.getY();
-            double segmentStopYLocal = segmentStartYLocal+ activeZUnit.y*segment.length;
-
-            int startLocalY = Math.max((int) Math.floor(segmentStartYLocal), 0);
-            int stopLocalY = Math.min((int) Math.floor(segmentStopYLocal), bufferSize-1);
-            int currLocalY = Math.max(startLocalY, bufferOrigin.getY());
+        }
+    }
 
-            double yOffset = startLocalY+0.5-segmentStartYLocal;
-            double currLocalX = (origin.x-bufferOrigin.getX())
-                    +slopeXY*(yOffset)-0.5;
-            double currLocalZ = (origin.z-bufferOrigin.getZ())
-                    +slopeZY*(yOffset)-0.5;
-            while (currLocalY <= stopLocalY) {
-                int z = (int)Math.round(currLocalZ);
-                int x = (int)Math.round(currLocalX);
-                if (z < bufferSize && x < bufferSize && z >= 0 && x >= 0) {
-                    buffer[x][currLocalY][z] |= fillValue;
-                }
-                currLocalY++;
-                currLocalX += slopeXY;
-                currLocalZ += slopeZY;
+    /**
+     * Places every voxel the line passes through (Amanatides & Woo): from the voxel it starts in, repeatedly step
+     * into the next voxel along whichever axis it reaches a voxel boundary on first.
+     */
+    private static void walkSupercover(CubeVoxelBuffer buffer, double[] start, double[] direction, double tStart,
+                                       double tStop, byte fillValue) {
+        int[] voxel = new int[3];
+        int[] step = new int[3];
+        // Where along the line it next crosses into another voxel along each axis, and how far apart those are.
+        double[] tNext = new double[3];
+        double[] tDelta = new double[3];
+        for (int axis = 0; axis < 3; axis++) {
+            voxel[axis] = voxel(start[axis]+tStart*direction[axis]);
+            if (direction[axis] > 0) {
+                step[axis] = 1;
+                tNext[axis] = (voxel[axis]+1-start[axis])/direction[axis];
+                tDelta[axis] = 1/direction[axis];
+            } else if (direction[axis] < 0) {
+                step[axis] = -1;
+                tNext[axis] = (voxel[axis]-start[axis])/direction[axis];
+                tDelta[axis] = -1/direction[axis];
+            } else {
+                tNext[axis] = Double.POSITIVE_INFINITY;
+            }
+        }
+        while (true) {
+            buffer.setThin(voxel[0], voxel[1], voxel[2], fillValue);
+            int axis = (tNext[0] < tNext[1]) ? ((tNext[0] < tNext[2]) ? 0 : 2) : ((tNext[1] < tNext[2]) ? 1 : 2);
+            if (tNext[axis] > tStop) {
+                break;
             }
+            voxel[axis] += step[axis];
+            if ((voxel[axis] < 0) || (voxel[axis] >= CubeVoxelBuffer.SIZE)) {
+                break;
+            }
+            tNext[axis] += tDelta[axis];
+        }
+    }
+
+    /**
+     * The buffer voxel holding the coordinate, clamped to the buffer in case it's right on its far edge.
+     */
+    private static int voxel(double coordinate) {
+        return Math.min(Math.max((int) Math.floor(coordinate), 0), CubeVoxelBuffer.SIZE-1);
+    }
+
+    private static int axisIndex(Helpers.PrincipalAxis axis) {
+        switch (axis) {
+            case X:
+                return 0;
+            case Y:
+                return 1;
+            case Z:
+                return 2;
+            default:
+                return -1;
         }
     }
 }
@@ -0,0 +1,331 @@
+package com.joekeen03.yggdrasil.world.structure.generationFeatures;
+
+import com.joekeen03.yggdrasil.util.BoundingCapsule;
+import com.joekeen03.yggdrasil.util.Helpers;
+import com.joekeen03.yggdrasil.util.IntegerMinimumAABB;
+import com.joekeen03.yggdrasil.util.InvalidValueException;
+import net.minecraft.util.math.Vec3d;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Works out which voxels of a {@link CubeVoxelBuffer} row lie within a shape, by solving for where the row's line
+ * enters and leaves it, rather than testing each voxel. Returns rows in the buffer's format: bit z set for each voxel
+ * in the row that's inside.
+ * Each row is the line (dx, dy, z+zOffset), relative to the shape's origin, for z from 0 to SIZE-1.
+ */
+public class RowSpans {
+    // Distance between the centers of the buffer's first and last voxels along an axis.
+    private static final int BUFFER_SPAN = CubeVoxelBuffer.SIZE-1;
+    // How far past a cone's end planes it's marked as capped; only voxels right next to solid wood matter for bark.
+    private static final double CAP_DEPTH = 1;
+
+    /**
+     * Writes a cone (see {@link #cone}) cut down by the planes (see {@link #inPlane}) into the buffer, as solid wood;
+     * and whatever's within the cone, but cut off by the planes by no more than a block, as capped. Skips the per-row
+     * work entirely when {@link #classifyCone} can tell the buffer's entirely outside or inside.
+     * @param buffer
+     * @param bufferRay Position of the buffer's first voxel, relative to the cone's origin.
+     * @param unit
+     * @param radius1
+     * @param inverseSlope
+     * @param planes
+     * @param planeOffsets
+     * @param wood
+     */
+    public static void fillCone(CubeVoxelBuffer buffer, Vec3d bufferRay, Vec3d unit, double radius1,
+                                double inverseSlope, Vec3d[] planes, double[] planeOffsets, byte wood) {
+        switch (classifyCone(bufferRay, unit, radius1, inverseSlope, planes, planeOffsets)) {
+            case OUTSIDE:
+                return;
+            case INSIDE:
+                buffer.fillSolid(wood);
+                return;
+        }
+        for (int x = 0; x < CubeVoxelBuffer.SIZE; x++) {
+            double dx = x+bufferRay.x;
+            for (int y = 0; y < CubeVoxelBuffer.SIZE; y++) {
+                double dy = y+bufferRay.y;
+                int inside = cone(dx, dy, bufferRay.z, unit, radius1, inverseSlope);
+                if (inside == 0) {
+                    continue;
+                }
+                int solid = inside;
+                int capped = inside;
+                for (int i = 0; i < planes.length && capped != 0; i++) {
+                    solid &= inPlane(dx, dy, bufferRay.z, planes[i], planeOffsets[i]);
+                    capped &= inPlane(dx, dy, bufferRay.z, planes[i], planeOffsets[i]-CAP_DEPTH);
+                }
+                buffer.setSolidRow(x, y, solid, wood);
+                buffer.setCappedRow(x, y, capped & ~solid); // Don't want it covering the ends in bark
+            }
+        }
+    }
+
+    /**
+     * Conservatively works out whether the buffer's voxels are all outside the cone (neither solid nor capped, per
+     * {@link #fillCone}), all solid, or some mix of the two.
+     * @param bufferRay Position of the buffer's first voxel, relative to the cone's origin.
+     * @param unit
+     * @param radius1
+     * @param inverseSlope
+     * @param planes
+     * @param planeOffsets
+     * @return
+     */
+    public static GenerationFeature.CubeCoverage classifyCone(Vec3d bufferRay, Vec3d unit, double radius1,
+                                                              double inverseSlope, Vec3d[] planes,
+                                                              double[] planeOffsets) {
+        // Each plane's value is linear, so its extremes over the buffer are at whichever corners its normal points
+        //  towards and away from.
+        boolean inPlanes = true;
+        for (int i = 0; i < planes.length; i++) {
+            Vec3d normal = planes[i];
+            double value = normal.dotProduct(bufferRay)-planeOffsets[i];
+            double max = value+BUFFER_SPAN*(Math.max(normal.x, 0)+Math.max(normal.y, 0)+Math.max(normal.z, 0));
+            if (max < -CAP_DEPTH) {
+                return GenerationFeature.CubeCoverage.OUTSIDE;
+            }
+            double min = value+BUFFER_SPAN*(Math.min(normal.x, 0)+Math.min(normal.y, 0)+Math.min(normal.z, 0));
+            inPlanes &= (min >= 0);
+        }
+        // No voxel's closer to the axis than the buffer's center, less how far the buffer's corners reach across the
+        //  axis; and the cone's radius within the buffer is at most its radius at one of the buffer's ends along the
+        //  axis.
+        double half = BUFFER_SPAN/2.0;
+        double cx = bufferRay.x+half;
+        double cy = bufferRay.y+half;
+        double cz = bufferRay.z+half;
+        double dot = cx*unit.x+cy*unit.y+cz*unit.z;
+        double radial = Math.sqrt(Math.max(cx*cx+cy*cy+cz*cz-dot*dot, 0));
+        double ax = Math.abs(unit.x);
+        double ay = Math.abs(unit.y);
+        double az = Math.abs(unit.z);
+        double alongExtent = half*(ax+ay+az);
+        // The corner furthest from the axis is the one whose offset from the center is most perpendicular to it.
+        double leastAlong = Math.min(Math.abs(ax+ay-az), Math.min(Math.abs(ax-ay+az), Math.abs(ay+az-ax)));
+        double acrossExtent = half*Math.sqrt(Math.max(3-leastAlong*leastAlong, 0));
+        double maxRadius = Math.max(Math.abs(radius1-(dot-alongExtent)*inverseSlope),
+                Math.abs(radius1-(dot+alongExtent)*inverseSlope));
+        if (radial-acrossExtent > maxRadius) {
+            return GenerationFeature.CubeCoverage.OUTSIDE;
+        }
+        if (!inPlanes) {
+            return GenerationFeature.CubeCoverage.PARTIAL;
+        }
+        // On the near side of its tip, the cone cut down by the planes is convex, so the whole buffer's inside it if
+        //  all the buffer's corners are.
+        for (int corner = 0; corner < 8; corner++) {
+            double dx = bufferRay.x+((corner & 1) != 0 ? BUFFER_SPAN : 0);
+            double dy = bufferRay.y+((corner & 2) != 0 ? BUFFER_SPAN : 0);
+            double dz = bufferRay.z+((corner & 4) != 0 ? BUFFER_SPAN : 0);
+            double cornerDot = dx*unit.x+dy*unit.y+dz*unit.z;
+            double currRadius = radius1-cornerDot*inverseSlope;
+            if (currRadius < 0 || (dx*dx+dy*dy+dz*dz)-cornerDot*cornerDot > currRadius*currRadius) {
+                return GenerationFeature.CubeCoverage.PARTIAL;
+            }
+        }
+        return GenerationFeature.CubeCoverage.INSIDE;
+    }
+
+    /**
+     * Works out a capsule around everything {@link #fillCone} could write for the cone, solid or capped, in any
+     * buffer; see {@link #axialRange}.
+     * @param origin The cone's origin, in block coordinates.
+     * @param unit
+     * @param radius1
+     * @param inverseSlope
+     * @param planes
+     * @param planeOffsets
+     * @return The capsule, or null if the planes don't bound the cone along its axis.
+     */
+    @Nullable
+    public static BoundingCapsule boundCone(Vec3d origin, Vec3d unit, double radius1, double inverseSlope,
+                                            Vec3d[] planes, double[] planeOffsets) {
+        double[] range = axialRange(unit, radius1, inverseSlope, planes, planeOffsets);
+        if (range == null) {
+            return null;
+        }
+        // The radius is linear in t on either side of the tip, so it's largest at one end or the other.
+        double radius = Math.max(Math.abs(radius1-range[0]*inverseSlope), Math.abs(radius1-range[1]*inverseSlope));
+        return new BoundingCapsule(origin.add(unit.scale(range[0])), origin.add(unit.scale(range[1])), radius);
+    }
+
+    /**
+     * Cube-scale bounding box around everything {@link #fillCone} could write for the cone, solid or capped, in any
+     * buffer: the cone between the ends of its {@link #axialRange}.
+     * @param feature
+     * @param origin The cone's origin, in block coordinates.
+     * @param unit
+     * @param radius1
+     * @param inverseSlope
+     * @param planes
+     * @param planeOffsets
+     * @return
+     */
+    @Nonnull
+    public static IntegerMinimumAABB boundingBox(GenerationFeature feature, Vec3d origin, Vec3d unit,
+                                                 double radius1, double inverseSlope, Vec3d[] planes,
+                                                 double[] planeOffsets) {
+        double[] range = axialRange(unit, radius1, inverseSlope, planes, planeOffsets);
+        if (range == null) {
+            throw new InvalidValueException("Cone isn't bounded along its axis by its planes.");
+        }
+        // Past the tip it's a second cone, but that starts from a point on the axis, which is already between the
+        //  two ends' disks.
+        return Helpers.coneBoundingBox(feature, origin.add(unit.scale(range[0])), origin.add(unit.scale(range[1])),
+                Math.abs(radius1-range[0]*inverseSlope), Math.abs(radius1-range[1]*inverseSlope));
+    }
+
+    /**
+     * Works out how far along the cone's axis (from its origin) {@link #fillCone} could write anything, solid or
+     * capped.
+     * Each plane limits how far the cone can reach past it: at distance t along the axis, the point furthest towards
+     * the plane's side is radius(t) out from the axis, straight towards the plane. So with the plane's normal at angle
+     * a to the axis, t*cos(a)+radius(t)*sin(a) >= offset-CAP_DEPTH; radius(t) being linear in t, that's a bound on t,
+     * one way or the other. Past the tip, the radius grows again, so it's bounded separately.
+     * @param unit
+     * @param radius1
+     * @param inverseSlope
+     * @param planes
+     * @param planeOffsets
+     * @return The smallest and largest distance along the axis, or null if the planes don't bound the cone.
+     */
+    @Nullable
+    private static double[] axialRange(Vec3d unit, double radius1, double inverseSlope, Vec3d[] planes,
+                                       double[] planeOffsets) {
+        // Before the tip (or anywhere, for a cylinder), radius(t) = radius1-t*inverseSlope...
+        double tip = (inverseSlope > 0) ? radius1/inverseSlope : Double.POSITIVE_INFINITY;
+        double nearMin = Double.NEGATIVE_INFINITY;
+        double nearMax = tip;
+        // ...and past it, t*inverseSlope-radius1.
+        double farMin = tip;
+        double farMax = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < planes.length; i++) {
+            double cos = planes[i].dotProduct(unit);
+            double sin = Math.sqrt(Math.max(1-cos*cos, 0));
+            double limit = planeOffsets[i]-CAP_DEPTH;
+            double nearRate = cos-inverseSlope*sin;
+            if (nearRate > 0) {
+                nearMin = Math.max(nearMin, (limit-radius1*sin)/nearRate);
+            } else if (nearRate < 0) {
+                nearMax = Math.min(nearMax, (limit-radius1*sin)/nearRate);
+            }
+            double farRate = cos+inverseSlope*sin;
+            if (farRate > 0) {
+                farMin = Math.max(farMin, (limit+radius1*sin)/farRate);
+            } else if (farRate < 0) {
+                farMax = Math.min(farMax, (limit+radius1*sin)/farRate);
+            }
+        }
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        if (nearMin <= nearMax) {
+            min = nearMin;
+            max = nearMax;
+        }
+        if ((inverseSlope > 0) && (farMin <= farMax)) {
+            min = Math.min(min, farMin);
+            max = Math.max(max, farMax);
+        }
+        if (Double.isInfinite(min) || Double.isInfinite(max)) {
+            // Either unbounded, or nothing's within the planes at all.
+            return null;
+        }
+        return new double[] {min, max};
+    }
+
+    /**
+     * The voxels in the row within a cone (or cylinder) - i.e. where the distance from the cone's axis is at most
+     * radius1-dot*inverseSlope, dot being the distance along the axis. Like the voxel tests this replaces, that's the
+     * whole double cone; cut it down with {@link #atLeast} if need be.
+     * @param dx
+     * @param dy
+     * @param zOffset
+     * @param unit The cone's axis.
+     * @param radius1 The cone's radius at its origin.
+     * @param inverseSlope How much the radius shrinks per block along the axis; 0 for a cylinder.
+     * @return
+     */
+    public static int cone(double dx, double dy, double zOffset, Vec3d unit, double radius1, double inverseSlope) {
+        // With the distance along the axis t = dotXY+unit.z*dz, and the radius there r = k-unit.z*inverseSlope*dz,
+        //  a voxel's inside where dx^2+dy^2+dz^2-t^2-r^2 <= 0; which is quadratic in dz.
+        double dotXY = dx*unit.x+dy*unit.y;
+        double k = radius1-dotXY*inverseSlope;
+        double uz2 = unit.z*unit.z;
+        double a = 1-uz2-uz2*inverseSlope*inverseSlope;
+        double b = 2*unit.z*(k*inverseSlope-dotXY);
+        double c = dx*dx+dy*dy-dotXY*dotXY-k*k;
+        return atMost(a, b, c, zOffset);
+    }
+
+    /**
+     * The voxels in the row where normal.d >= offset, d being the voxel's position.
+     * @param dx
+     * @param dy
+     * @param zOffset
+     * @param normal
+     * @param offset
+     * @return
+     */
+    public static int inPlane(double dx, double dy, double zOffset, Vec3d normal, double offset) {
+        return atLeast(normal.z, normal.x*dx+normal.y*dy-offset, zOffset);
+    }
+
+    /**
+     * The voxels in the row where a*dz^2+b*dz+c <= 0.
+     * @param a
+     * @param b
+     * @param c
+     * @param zOffset
+     * @return
+     */
+    public static int atMost(double a, double b, double c, double zOffset) {
+        if (a == 0) {
+            return atLeast(-b, -c, zOffset);
+        }
+        double discriminant = b*b-4*a*c;
+        if (discriminant < 0) { // Never crosses 0.
+            return (a > 0) ? 0 : CubeVoxelBuffer.FULL_ROW;
+        }
+        // Avoids cancellation when b is much larger than a*c.
+        double q = -0.5*(b+Math.copySign(Math.sqrt(discriminant), b));
+        double root1 = q/a;
+        double root2 = (q != 0) ? c/q : root1;
+        double low = Math.min(root1, root2)-zOffset;
+        double high = Math.max(root1, root2)-zOffset;
+        if (a > 0) { // Opens upwards, so it's <= 0 between the roots...
+            return span(Math.ceil(low), Math.floor(high));
+        }
+        // ...and otherwise everywhere but between them.
+        return CubeVoxelBuffer.FULL_ROW & ~span(Math.floor(low)+1, Math.ceil(high)-1);
+    }
+
+    /**
+     * The voxels in the row where b*dz+c >= 0.
+     * @param b
+     * @param c
+     * @param zOffset
+     * @return
+     */
+    public static int atLeast(double b, double c, double zOffset) {
+        if (b == 0) {
+            return (c >= 0) ? CubeVoxelBuffer.FULL_ROW : 0;
+        }
+        double bound = -c/b-zOffset;
+        return (b > 0) ? span(Math.ceil(bound), CubeVoxelBuffer.SIZE) : span(-1, Math.floor(bound));
+    }
+
+    /**
+     * The voxels from first to last, inclusive, clamped to the row.
+     */
+    private static int span(double first, double last) {
+        if (!(first <= last) || last < 0 || first >= CubeVoxelBuffer.SIZE) {
+            return 0;
+        }
+        int start = (int) Math.max(first, 0);
+        int stop = (int) Math.min(last, CubeVoxelBuffer.SIZE-1);
+        return (-1 << start) & ~(-2 << stop);
+    }
+}
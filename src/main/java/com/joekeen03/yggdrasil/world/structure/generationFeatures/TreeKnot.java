@@ -2,10 +2,6 @@ package com.joekeen03.yggdrasil.world.structure.generationFeatures;
 
 import com.joekeen03.yggdrasil.util.*;
 import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
-import io.github.opencubicchunks.cubicchunks.api.world.ICube;
-import io.github.opencubicchunks.cubicchunks.api.worldgen.CubePrimer;
-import net.minecraft.block.state.IBlockState;
-import net.minecraft.init.Blocks;
 import net.minecraft.util.math.Vec3d;
 
 import javax.annotation.Nonnull;
@@ -45,11 +41,6 @@ public class TreeKnot implements GenerationFeature {
     // Orientation should point towards the knot's interior.
     private final Vec3d origin, orientationUnit, lengthwiseUnit;
 
-    private static final int INVALID = 0b000; // 0
-    private static final int EXPOSED = 0b001; // 1
-    private static final int AIR_NOBARK = 0b010; // 2
-    private static final int WOOD = 0b110; // 6
-    private static final int BARK = 0b111; // 7
     private final double wallOutsideSemiMajor2;
     private final double wallOutsideSemiMinor2;
     private final double holeSemiMajor2;
@@ -96,21 +87,20 @@ public class TreeKnot implements GenerationFeature {
     }
 
     @Override
-    public void generate(CubePrimer cubePrimer, CubePos pos) {
-        // Buffer is 2 units bigger on all sides than the actual cube.
-        int bufferSize = ICube.SIZE+2;
+    public void generate(CubeVoxelBuffer buffer, CubePos pos) {
+        // Buffer is 1 block bigger on all sides than the actual cube, so bark can be worked out at the cube's edges.
         Vec3d cubeRay = new Vec3d(pos.getMinBlockPos()).subtract(origin).subtract(1, 1, 1);
-        // Stores what should be at this position.
-        byte[][][] buffer = new byte[bufferSize][bufferSize][bufferSize];
-        // TODO Use int[][] buffers instead, with the int value for an x-z position storing the value of a flag for all
-        //  y positions, and eac
-        for (int x = 0; x < bufferSize; x++) {
+        // Whichever direction the branch is going in.
+        byte wood = CubeVoxelBuffer.woodAlong(lengthwiseUnit);
+        for (int x = 0; x < CubeVoxelBuffer.SIZE; x++) {
             double dx = x+cubeRay.x;
             double dx2 = dx*dx;
-            for (int y = 0; y < bufferSize; y++) {
+            for (int y = 0; y < CubeVoxelBuffer.SIZE; y++) {
                 double dy = y+cubeRay.y;
                 double dy2 = dy*dy;
-                for (int z = 0; z < bufferSize; z++) {
+                int solid = 0;
+                int carved = 0;
+                for (int z = 0; z < CubeVoxelBuffer.SIZE; z++) {
                     double dz = z+cubeRay.z;
                     double dz2 = dz*dz;
                     double dist2 = dx2+dy2+dz2;
@@ -122,12 +112,12 @@ public class TreeKnot implements GenerationFeature {
                     if ((distanceLengthwise2/holeSemiMajor2 + distanceCirc2/holeSemiMinor2) < 1) {
                         // Within the perimeter of the knot's central hole.
                         if (dot < holeDepth) { // Within the actual hole
-                            buffer[x][y][z] = AIR_NOBARK;
+                            carved |= 1 << z;
                         }
                     } else if ((distanceLengthwise2/ wallOutsideSemiMajor2 + distanceCirc2/ wallOutsideSemiMinor2) < 1) {
                         // Within the knot's wall
                         if (-dot < wallHeight-topRadius) {
-                            buffer[x][y][z] = WOOD;
+                            solid |= 1 << z;
                         } else if (-dot < wallHeight) {
                             // Define a local coordinate system, with w running parallel to the hole's orientation,
                             //  and u running along the vector from the current block point, to the point on the ellipse
@@ -136,7 +126,7 @@ public class TreeKnot implements GenerationFeature {
                             double w = dot-(wallHeight-topRadius);
                             double u = Math.abs(topRadius-t); // Distance along this
                             if (w*w + u*u < topRadius*topRadius) {
-                                buffer[x][y][z] = WOOD;
+                                solid |= 1 << z;
                             }
                         }
                     } else { // Outside the main wall.
@@ -146,37 +136,18 @@ public class TreeKnot implements GenerationFeature {
                             double currSemiMinor = holeSemiMinor+wallThickness+distVertical* outsideSlope;
                             if (distanceLengthwise2/(currSemiMajor*currSemiMajor) // Within the exterior slope
                                     + distanceCirc2/(currSemiMinor*currSemiMinor) < 1) {
-                                buffer[x][y][z] = WOOD;
+                                solid |= 1 << z;
                             }
-                        } else {
-                            buffer[x][y][z] = EXPOSED;
                         }
                         // TODO make the knot's exterior slope flatten out at the major axes (variable slope).
                     }
                 }
-            }
-        }
-
-        // Whichever direction the branch is going in.
-        IBlockState axisLog = BlockHelpers.fetchOakLog(lengthwiseUnit);
-        IBlockState[] blockArray = new IBlockState[8];
-        blockArray[AIR_NOBARK] = Blocks.AIR.getDefaultState();
-        blockArray[WOOD] = axisLog;
-        blockArray[BARK] = BlockHelpers.blockOakNone;
-        for (int x = 0; x < ICube.SIZE; x++) {
-            for (int y = 0; y < ICube.SIZE; y++) {
-                for (int z = 0; z < ICube.SIZE; z++) {
-                    int material = buffer[x+1][y+1][z+1]
-                            | (EXPOSED & (buffer[x][y+1][z+1] | buffer[x+2][y+1][z+1] | buffer[x+1][y][z+1]
-                            | buffer[x+1][y+2][z+1] | buffer[x+1][y+1][z] | buffer[x+1][y+1][z+2]));
-                    if (material >= AIR_NOBARK) {
-                        cubePrimer.setBlockState(x, y, z, blockArray[material]);
-                    }
-                }
+                buffer.carveRow(x, y, carved);
+                buffer.setSolidRow(x, y, solid, wood);
             }
         }
         if (Constants.DEBUG) {
-            generateDebugBoundingBox(cubePrimer, pos);
+            buffer.addDebugBoundingBox(this);
         }
     }
 
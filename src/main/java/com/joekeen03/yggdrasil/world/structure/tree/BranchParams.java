@@ -1,5 +1,7 @@
 package com.joekeen03.yggdrasil.world.structure.tree;
 
+import com.joekeen03.yggdrasil.util.Helpers;
+
 import java.util.Random;
 
 public class BranchParams extends StemParams {
@@ -26,6 +28,16 @@ public class BranchParams extends StemParams {
         return new SegSplitErrorBranch(random, this);
     }
 
+    @Override
+    public long hashParams(long hash) {
+        hash = super.hashParams(hash);
+        hash = Helpers.hashMix(hash, branches);
+        hash = Helpers.hashMix(hash, downAngle);
+        hash = Helpers.hashMix(hash, downAngleVariation);
+        hash = Helpers.hashMix(hash, rotate);
+        return Helpers.hashMix(hash, rotateVariation);
+    }
+
     public BranchParams createVariation(BranchVaryDoubleEnum param, double val) {
 
         double downAngle = this.downAngle;
@@ -1,5 +1,7 @@
 package com.joekeen03.yggdrasil.world.structure.tree;
 
+import com.joekeen03.yggdrasil.util.Helpers;
+
 public class LeafParams {
     public final int leaves, leafShape;
     public final double leafScale, leafScaleX;
@@ -10,4 +12,11 @@ public class LeafParams {
         this.leafScale = leafScale;
         this.leafScaleX = leafScaleX;
     }
+
+    public long hashParams(long hash) {
+        hash = Helpers.hashMix(hash, leaves);
+        hash = Helpers.hashMix(hash, leafShape);
+        hash = Helpers.hashMix(hash, leafScale);
+        return Helpers.hashMix(hash, leafScaleX);
+    }
 }
@@ -9,6 +9,10 @@ public abstract class SegSplitError {
         segSplitsError = random.nextDouble()/2;
     }
 
+    protected SegSplitError(double segSplitsError) {
+        this.segSplitsError = segSplitsError;
+    }
+
     protected int getNextEffectiveSplits(double splits) {
         // FIXME What does Math.round mean by "ties round to positive infinity"?
         //  Think it means rounding up - 0.5 -> 1.0, 1.5 -> 2, -1.5 -> -1.0, and so on.
@@ -18,4 +22,22 @@ public abstract class SegSplitError {
     }
 
     public abstract int getNextEffectiveSplits(int i);
+
+    /**
+     * Returns an independent copy of this, with the same current error.
+     * @return
+     */
+    public abstract SegSplitError copy();
+
+    public double getSegSplitsError() {
+        return segSplitsError;
+    }
+
+    /**
+     * Restores a previously saved error, e.g. when loading a stored tree.
+     * @param segSplitsError
+     */
+    public void setSegSplitsError(double segSplitsError) {
+        this.segSplitsError = segSplitsError;
+    }
 }
@@ -10,6 +10,16 @@ public class SegSplitErrorBranch extends SegSplitError {
         this.branchParams = branchParams;
     }
 
+    private SegSplitErrorBranch(double segSplitsError, BranchParams branchParams) {
+        super(segSplitsError);
+        this.branchParams = branchParams;
+    }
+
+    @Override
+    public SegSplitError copy() {
+        return new SegSplitErrorBranch(getSegSplitsError(), branchParams);
+    }
+
     @Override
     public int getNextEffectiveSplits(int i) {
         return getNextEffectiveSplits(branchParams.segSplits);
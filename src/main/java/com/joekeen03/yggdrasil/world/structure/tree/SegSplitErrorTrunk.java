@@ -11,6 +11,16 @@ public class SegSplitErrorTrunk extends SegSplitError {
         this.trunkParams = trunkParams;
     }
 
+    private SegSplitErrorTrunk(double segSplitsError, TrunkParams trunkParams) {
+        super(segSplitsError);
+        this.trunkParams = trunkParams;
+    }
+
+    @Override
+    public SegSplitError copy() {
+        return new SegSplitErrorTrunk(getSegSplitsError(), trunkParams);
+    }
+
     // FIXME Should this be moved to a separate class? I.e. treat this class as level-global constant data, and another
     //  class holds level-global volatile data?
     @Override
@@ -1,5 +1,7 @@
 package com.joekeen03.yggdrasil.world.structure.tree;
 
+import com.joekeen03.yggdrasil.util.Helpers;
+
 import java.util.Random;
 
 public abstract class StemParams {
@@ -27,4 +29,22 @@ public abstract class StemParams {
     }
 
     public abstract SegSplitError initializeError(Random random);
+
+    /**
+     * Mixes all parameters which affect the generated stems into the provided hash.
+     * @param hash
+     * @return
+     */
+    public long hashParams(long hash) {
+        hash = Helpers.hashMix(hash, curveRes);
+        hash = Helpers.hashMix(hash, length);
+        hash = Helpers.hashMix(hash, lengthVariation);
+        hash = Helpers.hashMix(hash, taper);
+        hash = Helpers.hashMix(hash, segSplits);
+        hash = Helpers.hashMix(hash, splitAngle);
+        hash = Helpers.hashMix(hash, splitAngleVariation);
+        hash = Helpers.hashMix(hash, curve);
+        hash = Helpers.hashMix(hash, curveBack);
+        return Helpers.hashMix(hash, curveVariation);
+    }
 }
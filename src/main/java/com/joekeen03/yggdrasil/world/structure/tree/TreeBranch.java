@@ -2,6 +2,10 @@ package com.joekeen03.yggdrasil.world.structure.tree;
 
 import com.joekeen03.yggdrasil.util.StemVec3d;
 
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
 public class TreeBranch {
     public final TreeSegment firstSegment;
 
@@ -24,6 +28,109 @@ public class TreeBranch {
                         branchDistance, level, treeCreationParams));
     }
 
+    /**
+     * Branch which hasn't been built yet; see {@link TreeBranchNode}.
+     * @param deferred
+     */
+    TreeBranch(TreeBranchNode deferred) {
+        this.firstSegment = deferred;
+    }
+
+    /**
+     * Upper bound on how far a branch, and everything which grows off of it, can reach from the specified point along
+     * it. Ignores the branch's radius.
+     * @param treeCreationParams
+     * @param branchLength Length of the branch
+     * @param offset How far along the branch the point is.
+     * @param level The branch's level
+     * @return
+     */
+    public static double computeMaxReach(TreeModel.TreeCreationParams treeCreationParams, double branchLength,
+                                         double offset, int level) {
+        // However the branch curves or splits, nothing on it is further away than the length left along it; and a child
+        //  can't reach further than that plus the child's own max reach.
+        double remainingLength = branchLength-offset;
+        if (level+1 >= treeCreationParams.treeParams.stemLevels) { // Next level is the leaf level
+            return remainingLength;
+        }
+        StemParams childParams = treeCreationParams.treeParams.fetchParams(level+1);
+        double maxChildRelativeLength = childParams.length+childParams.lengthVariation;
+        // This assumes the max length only occurs at the base or tip. Which is guaranteed true for any level past the
+        //  trunk. Not sure about the trunk, though.
+        double maxChildLengthBase = computeChildLength(treeCreationParams, branchLength, maxChildRelativeLength, offset, level);
+        double maxChildLengthTip = computeChildLength(treeCreationParams, branchLength, maxChildRelativeLength, branchLength, level);
+        double childMaxReach = computeMaxReach(treeCreationParams, Math.max(maxChildLengthBase, maxChildLengthTip),
+                0, level+1);
+        return remainingLength+childMaxReach;
+    }
+
+    private static double computeChildLength(TreeModel.TreeCreationParams treeCreationParams, double lengthParent,
+                                             double lengthChildMax, double offsetChild, int parentLevel) {
+        if (parentLevel == 0) {
+            double lengthChild = lengthParent*lengthChildMax
+                    *treeCreationParams.treeParams.shape.getRatio.applyAsDouble(
+                            (lengthParent-offsetChild)/(lengthParent-treeCreationParams.lengthBase));
+            return lengthChild;
+        } else {
+            double lengthChild = lengthChildMax*(lengthParent-0.6*offsetChild);
+            return lengthChild;
+        }
+    }
+
+    /**
+     * Builds each of the branches. If called from within a fork-join pool, they're built as parallel tasks, otherwise
+     * they're built in order on this thread. Either way, the result is the same, as long as each branch has its own
+     * TreeCreationParams.
+     * @param tasks
+     * @return
+     */
+    static TreeBranch[] buildAll(List<BuildTask> tasks) {
+        TreeBranch[] branches = new TreeBranch[tasks.size()];
+        if (tasks.size() > 1 && ForkJoinTask.inForkJoinPool()) {
+            ForkJoinTask.invokeAll(tasks);
+            for (int i = 0; i < branches.length; i++) {
+                branches[i] = tasks.get(i).join();
+            }
+        } else {
+            for (int i = 0; i < branches.length; i++) {
+                branches[i] = tasks.get(i).compute();
+            }
+        }
+        return branches;
+    }
+
+    /**
+     * Deferred construction of a branch (and everything growing off of it).
+     */
+    static class BuildTask extends RecursiveTask<TreeBranch> {
+        private final StemVec3d origin, zUnit, xUnit;
+        private final double length, baseRadius;
+        private final int nChildren, level;
+        private final TreeModel.TreeCreationParams treeCreationParams;
+
+        BuildTask(StemVec3d origin, StemVec3d zUnit, StemVec3d xUnit,
+                  double length, double baseRadius, int nChildren,
+                  int level, TreeModel.TreeCreationParams treeCreationParams) {
+            this.origin = origin;
+            this.zUnit = zUnit;
+            this.xUnit = xUnit;
+            this.length = length;
+            this.baseRadius = baseRadius;
+            this.nChildren = nChildren;
+            this.level = level;
+            this.treeCreationParams = treeCreationParams;
+        }
+
+        @Override
+        protected TreeBranch compute() {
+            if (level >= treeCreationParams.firstLazyLevel) {
+                return new TreeBranch(new TreeBranchNode(origin, zUnit, xUnit, length, baseRadius, nChildren, level,
+                        treeCreationParams));
+            }
+            return new TreeBranch(origin, zUnit, xUnit, length, baseRadius, nChildren, level, treeCreationParams);
+        }
+    }
+
     public static class BranchCreationParams {
         public final double stemRadius;
         public final double lengthFraction;
@@ -35,13 +142,30 @@ public class TreeBranch {
 
         public BranchCreationParams(double stemRadius, double lengthFraction, double branchLength,
                                     double branchDistance, int level, TreeModel.TreeCreationParams treeCreationParams) {
+            this(stemRadius, lengthFraction, branchLength, branchDistance, level,
+                    treeCreationParams.treeParams.fetchParams(level), treeCreationParams.fetchSegError(level));
+        }
+
+        public BranchCreationParams(double stemRadius, double lengthFraction, double branchLength,
+                                    double branchDistance, int level, StemParams currBranch,
+                                    SegSplitError segSplitError) {
             this.stemRadius = stemRadius;
             this.lengthFraction = lengthFraction;
             this.branchLength = branchLength;
             this.branchDistance = branchDistance;
             this.level = level;
-            this.currBranch = treeCreationParams.treeParams.fetchParams(level);
-            this.segSplitError = treeCreationParams.fetchSegError(level);
+            this.currBranch = currBranch;
+            this.segSplitError = segSplitError;
+        }
+
+        /**
+         * Returns a copy of these params, but with the specified split error.
+         * @param segSplitError
+         * @return
+         */
+        public BranchCreationParams withSplitError(SegSplitError segSplitError) {
+            return new BranchCreationParams(stemRadius, lengthFraction, branchLength, branchDistance, level,
+                    currBranch, segSplitError);
         }
     }
 }
@@ -0,0 +1,46 @@
+package com.joekeen03.yggdrasil.world.structure.tree;
+
+import com.joekeen03.yggdrasil.util.StemVec3d;
+
+/**
+ * Placeholder for a whole branch (and everything growing off of it) which hasn't been built yet. Like
+ * {@link TreeSegmentNode}, but for branches above the leaf cutoff, so far-off parts of a tree are only built once a
+ * cube near them is generated.
+ */
+public class TreeBranchNode extends TreeSegment {
+    public final StemVec3d xUnit;
+    public final double length;
+    public final int nChildren, level;
+    public final TreeModel.TreeCreationParams treeCreationParams;
+
+    public TreeBranchNode(StemVec3d origin, StemVec3d zUnit, StemVec3d xUnit, double length, double baseRadius,
+                          int nChildren, int level, TreeModel.TreeCreationParams treeCreationParams) {
+        super(origin, zUnit, baseRadius);
+        this.xUnit = xUnit;
+        this.length = length;
+        this.nChildren = nChildren;
+        this.level = level;
+        this.treeCreationParams = treeCreationParams;
+    }
+
+    /**
+     * Builds the branch. Always builds the same branch as building it eagerly would have, no matter how many times, in
+     * what order, or on how many threads it's called.
+     * @return
+     */
+    public TreeBranch create() {
+        // Fresh params from the same seed, so building it doesn't use up the stored params' random.
+        return new TreeBranch(origin, zUnit, xUnit, length, baseRadius, nChildren, level,
+                treeCreationParams.createChildParams(treeCreationParams.seed));
+    }
+
+    /**
+     * Upper bound on how far from its origin the branch, and everything growing off of it, can reach. Includes the
+     * branch's thickness.
+     * @return
+     */
+    public double computeMaxReach() {
+        // Twice the radius, as the segments' slanted end planes can stick out past the axis' end by up to a radius.
+        return TreeBranch.computeMaxReach(treeCreationParams, length, 0, level)+2*baseRadius;
+    }
+}
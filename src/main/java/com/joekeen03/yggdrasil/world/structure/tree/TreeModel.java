@@ -1,9 +1,11 @@
 package com.joekeen03.yggdrasil.world.structure.tree;
 
+import com.joekeen03.yggdrasil.config.YggdrasilConfig;
 import com.joekeen03.yggdrasil.util.Helpers;
 import com.joekeen03.yggdrasil.util.StemVec3d;
 
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 public class TreeModel {
     public final TreeBranch trunk;
@@ -61,11 +63,17 @@ public class TreeModel {
             cutoffRadius = leafBranchRadius;
         }
 
-        this.trunk = new TreeBranch(origin, trunkBaseZUnit, xUnit,
+        TreeBranch.BuildTask trunkTask = new TreeBranch.BuildTask(origin, trunkBaseZUnit, xUnit,
                 length, stemRadius, nChildren,
-                0, new TreeCreationParams(treeRandom, treeTypeParams, xUnit,
+                0, new TreeCreationParams(treeRandom.nextLong(), treeTypeParams, xUnit,
                 trunkBaseZUnit.crossProduct(xUnit).normalize(), trunkBaseZUnit, lengthBase,
-                firstCutoffLevel, cutoffRadius));
+                firstCutoffLevel, cutoffRadius, Math.max(1, YggdrasilConfig.lazyBranchLevel)));
+        if (YggdrasilConfig.parallelTreeBuild) {
+            // Child branches are then built as fork-join tasks; see TreeBranch.buildAll
+            this.trunk = ForkJoinPool.commonPool().invoke(trunkTask);
+        } else {
+            this.trunk = trunkTask.compute();
+        }
     }
 
     /**
@@ -80,18 +88,29 @@ public class TreeModel {
         return Helpers.randDoubleRange(random, -variation, variation);
     }
 
+    /**
+     * Parameters, random and split errors for building one branch (or one clone of a branch, after it splits). The
+     * random is seeded from this branch's seed, and every child branch or clone gets its own params, with a seed
+     * derived from this seed plus where it is on this branch - so any branch can be built on its own, in any order,
+     * and always comes out the same.
+     */
     public static class TreeCreationParams {
+        public final long seed;
         public final Random treeRandom;
         public final TreeTypeParams treeParams;
         public final StemVec3d xUnitTrunkBase, yUnitTrunkBase, zUnitTrunkBase;
         public final double lengthBase, cutoffRadius;
         public final int firstCutoffLevel;
+        // Branches at or past this level are left as TreeBranchNodes, and only built once something needs them.
+        public final int firstLazyLevel;
         public final SegSplitError[] splitErrors;
 
-        public TreeCreationParams(Random treeRandom, TreeTypeParams treeParams, StemVec3d xUnitTrunkBase,
+        public TreeCreationParams(long seed, TreeTypeParams treeParams, StemVec3d xUnitTrunkBase,
                                   StemVec3d yUnitTrunkBase, StemVec3d zUnitTrunkBase, double lengthBase,
-                                  int firstCutoffLevel, double cutoffRadius) {
-            this.treeRandom = treeRandom;
+                                  int firstCutoffLevel, double cutoffRadius, int firstLazyLevel) {
+            this.seed = seed;
+            this.firstLazyLevel = firstLazyLevel;
+            this.treeRandom = new Random(seed);
             this.treeParams = treeParams;
             this.xUnitTrunkBase = xUnitTrunkBase;
             this.yUnitTrunkBase = yUnitTrunkBase;
@@ -111,5 +130,50 @@ public class TreeModel {
         public SegSplitError fetchSegError(int level) {
             return splitErrors[level];
         }
+
+        /**
+         * Creates params for a child branch or clone, with its own random and split errors, so it can be built
+         * independently of its parent and siblings.
+         * @param seed One of {@link #childSeed}, {@link #cloneSeed} or {@link #nodeSeed}
+         * @return
+         */
+        public TreeCreationParams createChildParams(long seed) {
+            return createChildParams(seed, firstCutoffLevel, cutoffRadius, firstLazyLevel);
+        }
+
+        public TreeCreationParams createChildParams(long seed, int firstCutoffLevel, double cutoffRadius,
+                                                    int firstLazyLevel) {
+            return new TreeCreationParams(seed, treeParams, xUnitTrunkBase, yUnitTrunkBase,
+                    zUnitTrunkBase, lengthBase, firstCutoffLevel, cutoffRadius, firstLazyLevel);
+        }
+
+        /**
+         * Seed for the specified child branch growing off of the specified segment of this branch.
+         * @param segmentIndex
+         * @param childIndex
+         * @return
+         */
+        public long childSeed(int segmentIndex, int childIndex) {
+            return Helpers.deriveSeed(seed, segmentIndex, childIndex);
+        }
+
+        /**
+         * Seed for the specified clone this branch splits into after the specified segment.
+         * @param segmentIndex
+         * @param cloneIndex
+         * @return
+         */
+        public long cloneSeed(int segmentIndex, int cloneIndex) {
+            return Helpers.deriveSeed(seed, segmentIndex, -1L-cloneIndex);
+        }
+
+        /**
+         * Seed for the rest of this branch, from the specified segment on, when it's left to be created later.
+         * @param segmentIndex
+         * @return
+         */
+        public long nodeSeed(int segmentIndex) {
+            return Helpers.deriveSeed(seed, segmentIndex, Long.MIN_VALUE);
+        }
     }
 }
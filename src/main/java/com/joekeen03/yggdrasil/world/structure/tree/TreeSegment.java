@@ -38,7 +38,7 @@ public abstract class TreeSegment {
                                      TreeModel.TreeCreationParams treeCreationParams, TreeBranch.BranchCreationParams branchCreationParams) {
         if (isCutoff(treeCreationParams, branchCreationParams.level, computeNextRadiusZ(branchCreationParams,
                 ((double) i+1)/branchCreationParams.currBranch.curveRes))) {
-            long seed = treeCreationParams.treeRandom.nextLong();
+            long seed = treeCreationParams.nodeSeed(i);
             return new TreeSegmentNode(origin, zUnit, xUnit, prevRadiusZ, i, nextChildOffset, lastChildRotateAngle, remainingCorrection, seed, treeCreationParams, branchCreationParams);
         } else {
             return new TreeSegmentGenerated(origin, zUnit, xUnit,
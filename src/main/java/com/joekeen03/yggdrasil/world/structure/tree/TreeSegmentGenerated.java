@@ -33,7 +33,7 @@ public class TreeSegmentGenerated extends TreeSegment {
         final int nextLevel = branchCreationParams.level+1;
         TreeBranch[] children = new TreeBranch[0];
         if (nextLevel < treeCreationParams.treeParams.stemLevels) {
-            ArrayList<TreeBranch> branches = new ArrayList<>(10);
+            ArrayList<TreeBranch.BuildTask> branches = new ArrayList<>(10);
             while (offset < endLength) {
                 BranchParams nextBranch = (BranchParams)treeCreationParams.treeParams.fetchParams(nextLevel);
                 double lengthChildMax = nextBranch.length+TreeModel.randDoubleVariation(treeCreationParams.treeRandom, nextBranch.lengthVariation);
@@ -96,13 +96,16 @@ public class TreeSegmentGenerated extends TreeSegment {
                     nStems = (int) Math.round(nextBranch.branches*(0.2+0.8*(lengthChild/branchCreationParams.branchLength)/lengthChildMax));
                 }
                 // TODO Spawn child
-                branches.add(new TreeBranch(childOrigin, childZUnit, childXUnit,
+                // Each child gets its own random and split errors, seeded from this branch's seed and the child's
+                //  position, so children don't depend on each other and can be built in any order (or in parallel)
+                //  with the same result.
+                branches.add(new TreeBranch.BuildTask(childOrigin, childZUnit, childXUnit,
                         lengthChild, radiusChild, nStems,
-                        nextLevel, treeCreationParams));
+                        nextLevel, treeCreationParams.createChildParams(treeCreationParams.childSeed(i, branches.size()))));
 
                 offset += branchCreationParams.branchDistance;
             }
-            children = branches.toArray(new TreeBranch[0]);
+            children = TreeBranch.buildAll(branches);
         }
         this.children = children;
 
@@ -188,10 +191,13 @@ public class TreeSegmentGenerated extends TreeSegment {
             }
 
             // FIXME Proper joining between branches.
+            // Each clone carries on with its own random, and its own copy of the split error, so the clones don't
+            //  depend on each other either.
             nextSegments[j] = TreeSegment.createSegment(nextOrigin, nextZUnits[j], nextXUnit,
                     radiusZ, i+1, offset, lastChildAngle,
                     remainingCorrection + splitAngles[j],
-                    treeCreationParams, branchCreationParams);
+                    treeCreationParams.createChildParams(treeCreationParams.cloneSeed(i, j)),
+                    branchCreationParams.withSplitError(branchCreationParams.segSplitError.copy()));
         }
         return nextSegments;
     }
@@ -3,8 +3,6 @@ package com.joekeen03.yggdrasil.world.structure.tree;
 import com.joekeen03.yggdrasil.util.InvalidValueException;
 import com.joekeen03.yggdrasil.util.StemVec3d;
 
-import java.util.Random;
-
 public class TreeSegmentNode extends TreeSegment {
     public final StemVec3d xUnit;
     public final double nextChildOffset, lastChildRotateAngle, remainingCorrection;
@@ -27,12 +25,18 @@ public class TreeSegmentNode extends TreeSegment {
         this.branchCreationParams = branchCreationParams;
     }
 
+    /**
+     * Creates the rest of the branch. Always creates the same branch, no matter how many times, in what order, or on
+     * how many threads it's called.
+     * @return
+     */
     public TreeSegmentGenerated create() {
-        TreeModel.TreeCreationParams thisParams = new TreeModel.TreeCreationParams(new Random(seed), treeCreationParams.treeParams,
-                treeCreationParams.xUnitTrunkBase, treeCreationParams.yUnitTrunkBase, treeCreationParams.zUnitTrunkBase,
-                treeCreationParams.lengthBase, Integer.MAX_VALUE, Double.NEGATIVE_INFINITY);
+        // Everything past this point gets created now, so nothing is cut off or deferred.
+        TreeModel.TreeCreationParams thisParams = treeCreationParams.createChildParams(seed,
+                Integer.MAX_VALUE, Double.NEGATIVE_INFINITY, Integer.MAX_VALUE);
+        // Works on a copy of the split error, so creating it doesn't change the result of creating it again.
         TreeSegment segment = TreeSegment.createSegment(origin, zUnit, xUnit, baseRadius, i, nextChildOffset, lastChildRotateAngle, remainingCorrection, thisParams,
-                branchCreationParams);
+                branchCreationParams.withSplitError(branchCreationParams.segSplitError.copy()));
         if (segment instanceof TreeSegmentGenerated) {
             return (TreeSegmentGenerated) segment;
         } else {
@@ -1,6 +1,7 @@
 package com.joekeen03.yggdrasil.world.structure.tree;
 
 import com.joekeen03.yggdrasil.ModYggdrasil;
+import com.joekeen03.yggdrasil.util.Helpers;
 import com.joekeen03.yggdrasil.util.InvalidValueException;
 import org.apache.commons.lang3.NotImplementedException;
 
@@ -24,6 +25,8 @@ public class TreeTypeParams {
     public final TrunkParams trunkParams;
     public final BranchParams[] branchParams;
     public final LeafParams leafParams;
+    // Stable hash of every parameter that affects the generated tree (so not the name).
+    public final long paramsHash;
 
     public TreeTypeParams(String name,
                           TreeShape shape,
@@ -68,6 +71,28 @@ public class TreeTypeParams {
         this.trunkParams = trunkParams;
         this.branchParams = branchParams;
         this.leafParams = leafParams;
+        this.paramsHash = computeParamsHash();
+    }
+
+    private long computeParamsHash() {
+        long hash = 0xCBF29CE484222325L; // FNV offset basis
+        hash = Helpers.hashMix(hash, shape.name().hashCode());
+        hash = Helpers.hashMix(hash, baseSize);
+        hash = Helpers.hashMix(hash, scale);
+        hash = Helpers.hashMix(hash, scaleVariation);
+        hash = Helpers.hashMix(hash, zScale);
+        hash = Helpers.hashMix(hash, zScaleVariation);
+        hash = Helpers.hashMix(hash, levels);
+        hash = Helpers.hashMix(hash, ratio);
+        hash = Helpers.hashMix(hash, ratioPower);
+        hash = Helpers.hashMix(hash, lobes);
+        hash = Helpers.hashMix(hash, lobeDepth);
+        hash = Helpers.hashMix(hash, flare);
+        hash = Helpers.hashMix(hash, attractionUp);
+        for (int level = 0; level < stemLevels; level++) {
+            hash = fetchParams(level).hashParams(hash);
+        }
+        return leafParams.hashParams(hash);
     }
 
     public StemParams fetchParams(int level) {
@@ -1,5 +1,6 @@
 package com.joekeen03.yggdrasil.world.structure.tree;
 
+import com.joekeen03.yggdrasil.util.Helpers;
 import com.joekeen03.yggdrasil.util.InvalidValueException;
 
 import java.util.Random;
@@ -28,6 +29,14 @@ public class TrunkParams extends StemParams {
         return new SegSplitErrorTrunk(random, this);
     }
 
+    @Override
+    public long hashParams(long hash) {
+        hash = super.hashParams(hash);
+        hash = Helpers.hashMix(hash, scale);
+        hash = Helpers.hashMix(hash, scaleVariation);
+        return Helpers.hashMix(hash, baseSplits);
+    }
+
     public TrunkParams createVariation(TrunkVaryDoubleEnum param, double val) {
         double scale = this.scale;
         double scaleVariation = this.scaleVariation;
@@ -0,0 +1,97 @@
+package com.joekeen03.yggdrasil.util;
+
+import com.joekeen03.yggdrasil.ModYggdrasil;
+import com.joekeen03.yggdrasil.world.structure.TreeMegaStructureGenerator;
+import com.joekeen03.yggdrasil.world.structure.generationFeatures.GenerationFeature;
+import com.joekeen03.yggdrasil.world.structure.tree.PossibleMegaTreeParams;
+import com.joekeen03.yggdrasil.world.structure.tree.TreeModel;
+import io.github.opencubicchunks.cubicchunks.api.util.CubePos;
+import org.apache.logging.log4j.LogManager;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link IntegerAABBTree#queryBox} against querying each of the box's cubes on its own, over a built tree.
+ */
+public class IntegerAABBTreeTest {
+    private static final int BOXES = 400;
+    private static final int MAX_BOX_LENGTH = 8;
+
+    private static IntegerAABBTree tree;
+
+    @BeforeClass
+    public static void setUp() {
+        // Normally set up when the mod's loaded.
+        ModYggdrasil.logger = LogManager.getLogger(ModYggdrasil.NAME);
+        TreeModel model = new TreeModel(new Random(7), new StemVec3d(3072, 48, 3072), new StemVec3d(0, 0, 1),
+                PossibleMegaTreeParams.active);
+        tree = new IntegerAABBTree(TreeMegaStructureGenerator.createGenerationFeatures(model.trunk, StemVec3d.ZERO)
+                .toArray(new GenerationFeature[0]));
+    }
+
+    @Test
+    public void boxQueryMatchesCubeQueries() {
+        Random random = new Random(25);
+        IntegerAABB bounds = tree.getBounds();
+        GenerationFeature[] expected = new GenerationFeature[1 << 16];
+        GenerationFeature[] found = new GenerationFeature[1 << 16];
+        int partial = 0;
+        long featuresFound = 0;
+        for (int i = 0; i < BOXES; i++) {
+            IntegerAABB box = randomBox(random, bounds, (i%2 == 0));
+            boolean inside = (box.minX >= bounds.minX) && (box.maxX <= bounds.maxX) && (box.minY >= bounds.minY)
+                    && (box.maxY <= bounds.maxY) && (box.minZ >= bounds.minZ) && (box.maxZ <= bounds.maxZ);
+            if (!inside) {
+                partial++;
+            }
+            IntegerAABBTree.BoxQuery query = tree.queryBox(box);
+            for (int x = box.minX; x <= box.maxX; x++) {
+                for (int y = box.minY; y <= box.maxY; y++) {
+                    for (int z = box.minZ; z <= box.maxZ; z++) {
+                        CubePos pos = new CubePos(x, y, z);
+                        int expectedCount = tree.query(pos, expected);
+                        String where = "box "+i+", cube ("+x+", "+y+", "+z+")";
+                        assertEquals("Feature count at "+where, expectedCount, query.query(pos, found));
+                        for (int j = 0; j < expectedCount; j++) {
+                            assertSame("Feature "+j+" at "+where, expected[j], found[j]);
+                        }
+                        featuresFound += expectedCount;
+                    }
+                }
+            }
+        }
+        // Otherwise it's not testing much.
+        assertTrue("No boxes only partly overlapped the tree", partial > 0);
+        assertTrue("No features were found", featuresFound > 0);
+    }
+
+    /**
+     * A box somewhere within the tree's bounds, or straddling one of their faces.
+     */
+    private static IntegerAABB randomBox(Random random, IntegerAABB bounds, boolean straddle) {
+        int[] min = {bounds.minX, bounds.minY, bounds.minZ};
+        int[] max = {bounds.maxX, bounds.maxY, bounds.maxZ};
+        int[] start = new int[3];
+        int[] length = new int[3];
+        for (int axis = 0; axis < 3; axis++) {
+            start[axis] = min[axis]+random.nextInt(max[axis]-min[axis]+1);
+            length[axis] = 1+random.nextInt(MAX_BOX_LENGTH);
+        }
+        if (straddle) {
+            // Puts the box over one of the faces, so part of it's inside the tree's bounds and part of it's outside.
+            int axis = random.nextInt(3);
+            int inside = 1+random.nextInt(MAX_BOX_LENGTH);
+            int outside = 1+random.nextInt(MAX_BOX_LENGTH);
+            start[axis] = random.nextBoolean() ? min[axis]-outside : max[axis]-inside+1;
+            length[axis] = inside+outside;
+        }
+        return new IntegerAABB(start[0], start[1], start[2], start[0]+length[0]-1, start[1]+length[1]-1,
+                start[2]+length[2]-1);
+    }
+}
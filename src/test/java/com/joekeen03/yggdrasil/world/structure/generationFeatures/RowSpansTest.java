@@ -0,0 +1,139 @@
+package com.joekeen03.yggdrasil.world.structure.generationFeatures;
+
+import net.minecraft.init.Bootstrap;
+import net.minecraft.util.math.Vec3d;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link RowSpans#fillCone} and {@link RowSpans#classifyCone} against testing each voxel of the buffer on its
+ * own, the way the features did before rows were solved for, for randomly oriented cones, cylinders and planes.
+ */
+public class RowSpansTest {
+    private static final int TRIALS = 5000;
+    // Voxels this close to any of the shape's surfaces could go either way, depending on rounding; they're skipped.
+    private static final double EPSILON = 1e-7;
+    private static final int OUTSIDE = 0;
+    private static final int CAPPED = 1;
+    private static final int SOLID = 2;
+    private static final int AMBIGUOUS = -1;
+
+    @BeforeClass
+    public static void setUp() {
+        // The buffer's wood blocks need the block registry.
+        Bootstrap.register();
+    }
+
+    @Test
+    public void fillConeMatchesPerVoxel() {
+        Random random = new Random(0x5EED);
+        int[] seen = new int[GenerationFeature.CubeCoverage.values().length];
+        for (int trial = 0; trial < TRIALS; trial++) {
+            Cone cone = new Cone(random);
+            GenerationFeature.CubeCoverage coverage = RowSpans.classifyCone(cone.bufferRay, cone.unit, cone.radius1,
+                    cone.inverseSlope, cone.planes, cone.planeOffsets);
+            seen[coverage.ordinal()]++;
+            CubeVoxelBuffer buffer = new CubeVoxelBuffer();
+            RowSpans.fillCone(buffer, cone.bufferRay, cone.unit, cone.radius1, cone.inverseSlope, cone.planes,
+                    cone.planeOffsets, CubeVoxelBuffer.WOOD_Y);
+            for (int x = 0; x < CubeVoxelBuffer.SIZE; x++) {
+                for (int y = 0; y < CubeVoxelBuffer.SIZE; y++) {
+                    int solid = buffer.getSolidRow(x, y);
+                    int capped = buffer.getCappedRow(x, y);
+                    for (int z = 0; z < CubeVoxelBuffer.SIZE; z++) {
+                        int expected = cone.classifyVoxel(x, y, z);
+                        if (expected == AMBIGUOUS) {
+                            continue;
+                        }
+                        String where = "trial "+trial+", voxel ("+x+", "+y+", "+z+"), "+coverage;
+                        assertEquals("Solid at "+where, expected == SOLID, ((solid >>> z) & 1) != 0);
+                        assertEquals("Capped at "+where, expected == CAPPED, ((capped >>> z) & 1) != 0);
+                        if (coverage == GenerationFeature.CubeCoverage.OUTSIDE) {
+                            assertEquals("Classified outside, but not at "+where, OUTSIDE, expected);
+                        } else if (coverage == GenerationFeature.CubeCoverage.INSIDE) {
+                            assertEquals("Classified inside, but not at "+where, SOLID, expected);
+                        }
+                    }
+                }
+            }
+        }
+        // Otherwise the shortcuts aren't being tested at all.
+        for (GenerationFeature.CubeCoverage coverage : GenerationFeature.CubeCoverage.values()) {
+            assertTrue("No buffer was classified "+coverage, seen[coverage.ordinal()] > 0);
+        }
+    }
+
+    /**
+     * A random cone, cut down by planes, and a buffer somewhere near it; shaped like the trees' cones, with a plane
+     * roughly across each end, and sometimes one more at any angle.
+     */
+    private static class Cone {
+        final Vec3d unit;
+        final double radius1;
+        final double inverseSlope;
+        final Vec3d[] planes;
+        final double[] planeOffsets;
+        final Vec3d bufferRay;
+
+        Cone(Random random) {
+            unit = randomUnit(random);
+            radius1 = (random.nextDouble() < 0.3) ? 15+random.nextDouble()*25 : 0.5+random.nextDouble()*12;
+            inverseSlope = (random.nextDouble() < 0.25) ? 0 : random.nextDouble()*0.6;
+            double length = 2+random.nextDouble()*40;
+            int planeCount = (random.nextDouble() < 0.3) ? 3 : 2;
+            planes = new Vec3d[planeCount];
+            planeOffsets = new double[planeCount];
+            planes[0] = unit.add(randomUnit(random).scale(0.5)).normalize();
+            planes[1] = unit.scale(-1).add(randomUnit(random).scale(0.5)).normalize();
+            planeOffsets[1] = planes[1].dotProduct(unit)*length;
+            if (planeCount == 3) {
+                planes[2] = randomUnit(random);
+                planeOffsets[2] = planes[2].dotProduct(unit.scale(random.nextDouble()*length))
+                        -random.nextDouble()*radius1;
+            }
+            // Somewhere along the cone, from the axis out to a bit past its surface.
+            double along = -10+random.nextDouble()*(length+20);
+            Vec3d across = unit.crossProduct(randomUnit(random)).normalize();
+            double radius = Math.abs(radius1-along*inverseSlope);
+            Vec3d center = unit.scale(along).add(across.scale(random.nextDouble()*(radius+CubeVoxelBuffer.SIZE)));
+            double half = (CubeVoxelBuffer.SIZE-1)/2.0;
+            bufferRay = center.subtract(half, half, half);
+        }
+
+        private static Vec3d randomUnit(Random random) {
+            return new Vec3d(random.nextGaussian(), random.nextGaussian(), random.nextGaussian()).normalize();
+        }
+
+        /**
+         * What fillCone should write at the voxel, worked out from the voxel's position alone.
+         */
+        int classifyVoxel(int x, int y, int z) {
+            Vec3d d = bufferRay.add(x, y, z);
+            double dot = d.dotProduct(unit);
+            double radius = radius1-dot*inverseSlope;
+            double coneValue = d.lengthSquared()-dot*dot-radius*radius;
+            if (Math.abs(coneValue) < EPSILON*(1+d.lengthSquared()+radius*radius)) {
+                return AMBIGUOUS;
+            }
+            if (coneValue > 0) {
+                return OUTSIDE;
+            }
+            boolean solid = true;
+            boolean capped = true;
+            for (int i = 0; i < planes.length; i++) {
+                double value = d.dotProduct(planes[i])-planeOffsets[i];
+                if (Math.abs(value) < EPSILON || Math.abs(value+1) < EPSILON) {
+                    return AMBIGUOUS;
+                }
+                solid &= (value >= 0);
+                capped &= (value >= -1);
+            }
+            return solid ? SOLID : (capped ? CAPPED : OUTSIDE);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.joekeen03.yggdrasil.world.structure.tree;
+
+import com.joekeen03.yggdrasil.ModYggdrasil;
+import com.joekeen03.yggdrasil.config.YggdrasilConfig;
+import com.joekeen03.yggdrasil.util.Helpers;
+import com.joekeen03.yggdrasil.util.StemVec3d;
+import org.apache.logging.log4j.LogManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that building a tree doesn't depend on how it's built: in parallel or not, and for branches deferred until
+ * they're needed, whenever and however many times they're built. Compares hashes of every segment's values.
+ */
+public class TreeBuildTest {
+    private static final long[] SEEDS = {2, 7, 99};
+    // Enough to defer most of each tree's branches, and past every level to defer none of them.
+    private static final int LAZY_LEVEL = 2;
+    private static final int EAGER_LEVEL = 99;
+
+    private boolean parallelTreeBuild;
+    private int lazyBranchLevel;
+
+    @BeforeClass
+    public static void setUp() {
+        // Normally set up when the mod's loaded.
+        ModYggdrasil.logger = LogManager.getLogger(ModYggdrasil.NAME);
+    }
+
+    @Before
+    public void saveConfig() {
+        parallelTreeBuild = YggdrasilConfig.parallelTreeBuild;
+        lazyBranchLevel = YggdrasilConfig.lazyBranchLevel;
+    }
+
+    @After
+    public void restoreConfig() {
+        YggdrasilConfig.parallelTreeBuild = parallelTreeBuild;
+        YggdrasilConfig.lazyBranchLevel = lazyBranchLevel;
+    }
+
+    @Test
+    public void parallelBuildMatchesSequential() {
+        for (int level : new int[] {LAZY_LEVEL, EAGER_LEVEL}) {
+            for (long seed : SEEDS) {
+                long sequential = hashBranch(build(seed, false, level).trunk, true);
+                long parallel = hashBranch(build(seed, true, level).trunk, true);
+                assertEquals("Seed "+seed+", lazy level "+level, sequential, parallel);
+            }
+        }
+    }
+
+    @Test
+    public void deferredBranchesMatchEagerBuild() {
+        for (long seed : SEEDS) {
+            long eager = hashBranch(build(seed, false, EAGER_LEVEL).trunk, false);
+            long lazy = hashBranch(build(seed, false, LAZY_LEVEL).trunk, true);
+            assertEquals("Seed "+seed, eager, lazy);
+        }
+    }
+
+    @Test
+    public void deferredBranchesRebuildIdentically() {
+        for (long seed : SEEDS) {
+            ArrayList<TreeBranchNode> deferred = new ArrayList<>();
+            collectDeferred(build(seed, false, LAZY_LEVEL).trunk.firstSegment, deferred);
+            assertTrue("Seed "+seed+" didn't defer any branches", !deferred.isEmpty());
+            // Later ones are built after earlier ones' subtrees, so they'd pick up any state those left behind.
+            for (int i = 0; i < deferred.size(); i++) {
+                TreeBranchNode node = deferred.get(i);
+                assertEquals("Seed "+seed+", deferred branch "+i, hashBranch(node.create(), true),
+                        hashBranch(node.create(), true));
+            }
+        }
+    }
+
+    private static TreeModel build(long seed, boolean parallel, int lazyLevel) {
+        YggdrasilConfig.parallelTreeBuild = parallel;
+        YggdrasilConfig.lazyBranchLevel = lazyLevel;
+        return new TreeModel(new Random(seed), new StemVec3d(3072, 48, 3072), new StemVec3d(0, 0, 1),
+                PossibleMegaTreeParams.active);
+    }
+
+    /**
+     * Every deferred branch, including those within other deferred branches.
+     */
+    private static void collectDeferred(TreeSegment segment, ArrayList<TreeBranchNode> deferred) {
+        if (segment instanceof TreeBranchNode) {
+            deferred.add((TreeBranchNode) segment);
+            collectDeferred(((TreeBranchNode) segment).create().firstSegment, deferred);
+        } else if (segment instanceof TreeSegmentGenerated) {
+            TreeSegmentGenerated generated = (TreeSegmentGenerated) segment;
+            for (TreeBranch child : generated.children) {
+                collectDeferred(child.firstSegment, deferred);
+            }
+            for (TreeSegment next : generated.nextSegments) {
+                collectDeferred(next, deferred);
+            }
+        }
+    }
+
+    /**
+     * Hashes every segment of the branch, and of everything growing off of it.
+     * @param branch
+     * @param buildDeferred Whether to build deferred branches and hash what they build, rather than the placeholder.
+     * @return
+     */
+    private static long hashBranch(TreeBranch branch, boolean buildDeferred) {
+        return hashSegment(0xCBF29CE484222325L, branch.firstSegment, buildDeferred);
+    }
+
+    private static long hashSegment(long hash, TreeSegment segment, boolean buildDeferred) {
+        if (buildDeferred && (segment instanceof TreeBranchNode)) {
+            return hashSegment(hash, ((TreeBranchNode) segment).create().firstSegment, true);
+        }
+        hash = hashVector(hash, segment.origin);
+        hash = hashVector(hash, segment.zUnit);
+        hash = Helpers.hashMix(hash, segment.baseRadius);
+        if (segment instanceof TreeSegmentGenerated) {
+            TreeSegmentGenerated generated = (TreeSegmentGenerated) segment;
+            hash = Helpers.hashMix(hash, generated.endRadius);
+            hash = Helpers.hashMix(hash, generated.length);
+            hash = Helpers.hashMix(hash, generated.level);
+            hash = Helpers.hashMix(hash, generated.children.length);
+            for (TreeBranch child : generated.children) {
+                hash = hashSegment(hash, child.firstSegment, buildDeferred);
+            }
+            hash = Helpers.hashMix(hash, generated.nextSegments.length);
+            for (TreeSegment next : generated.nextSegments) {
+                hash = hashSegment(hash, next, buildDeferred);
+            }
+        } else if (segment instanceof TreeSegmentNode) {
+            TreeSegmentNode node = (TreeSegmentNode) segment;
+            hash = hashVector(hash, node.xUnit);
+            hash = Helpers.hashMix(hash, node.seed);
+            hash = Helpers.hashMix(hash, node.i);
+            hash = Helpers.hashMix(hash, node.nextChildOffset);
+            hash = Helpers.hashMix(hash, node.lastChildRotateAngle);
+            hash = Helpers.hashMix(hash, node.remainingCorrection);
+        } else if (segment instanceof TreeBranchNode) {
+            TreeBranchNode node = (TreeBranchNode) segment;
+            hash = hashVector(hash, node.xUnit);
+            hash = Helpers.hashMix(hash, node.length);
+            hash = Helpers.hashMix(hash, node.nChildren);
+            hash = Helpers.hashMix(hash, node.level);
+            hash = Helpers.hashMix(hash, node.treeCreationParams.seed);
+        }
+        return hash;
+    }
+
+    private static long hashVector(long hash, StemVec3d vector) {
+        hash = Helpers.hashMix(hash, vector.x);
+        hash = Helpers.hashMix(hash, vector.y);
+        return Helpers.hashMix(hash, vector.z);
+    }
+}